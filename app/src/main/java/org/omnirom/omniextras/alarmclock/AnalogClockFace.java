@@ -0,0 +1,148 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+
+import org.omnirom.omniextras.R;
+
+/**
+ * Everything of the analog clock that does not change with the time. The
+ * background and the ring are rendered once into a static layer, the paints
+ * and text paths of the dynamic layer are kept for the next minute.
+ */
+class AnalogClockFace {
+    private static AnalogClockFace sCachedFace;
+
+    final int width;
+    final int x;
+    final int y;
+    final float radius;
+    final int circleStrokeWidth;
+    final int handEndLength;
+    final float textSizePixels;
+    final RectF arcRect = new RectF();
+    final Path datePath = new Path();
+    final Path alarmPath = new Path();
+
+    final Paint remaingCirclePaint = new Paint();
+    final Paint hourPaint = new Paint();
+    final Paint minutePaint = new Paint();
+    final Paint centerDotPaint = new Paint();
+    final Paint alarmPaint = new Paint();
+    final TextPaint textPaint = new TextPaint();
+    final Bitmap staticLayer;
+
+    private final int mDensityDpi;
+    private final int mUiMode;
+
+    static synchronized AnalogClockFace get(Context context) {
+        Resources r = context.getResources();
+        Configuration config = r.getConfiguration();
+        int width = r.getDimensionPixelSize(R.dimen.custom_analog_widget_size);
+        if (sCachedFace == null || sCachedFace.width != width
+                || sCachedFace.mDensityDpi != config.densityDpi
+                || sCachedFace.mUiMode != config.uiMode) {
+            sCachedFace = new AnalogClockFace(r, width);
+        }
+        return sCachedFace;
+    }
+
+    private AnalogClockFace(Resources r, int width) {
+        this.width = width;
+        mDensityDpi = r.getConfiguration().densityDpi;
+        mUiMode = r.getConfiguration().uiMode;
+
+        circleStrokeWidth = r.getDimensionPixelSize(R.dimen.widget_clock_circle_size);
+        handEndLength = r.getDimensionPixelSize(R.dimen.widget_clock_hand_end_length);
+        textSizePixels = r.getDimension(R.dimen.analog_widget_font_size);
+
+        remaingCirclePaint.setAntiAlias(true);
+        remaingCirclePaint.setStyle(Paint.Style.STROKE);
+        remaingCirclePaint.setColor(r.getColor(R.color.colorAccent));
+        remaingCirclePaint.setStrokeWidth(circleStrokeWidth);
+
+        hourPaint.setAntiAlias(true);
+        hourPaint.setStyle(Paint.Style.STROKE);
+        hourPaint.setColor(r.getColor(R.color.analog_clock_hour_hand_color));
+        hourPaint.setStrokeWidth(r.getDimensionPixelSize(R.dimen.widget_clock_hour_hand_width));
+
+        minutePaint.setAntiAlias(true);
+        minutePaint.setStyle(Paint.Style.STROKE);
+        minutePaint.setColor(r.getColor(R.color.analog_clock_minute_hand_color));
+        minutePaint.setStrokeWidth(r.getDimensionPixelSize(R.dimen.widget_clock_minute_hand_width));
+
+        centerDotPaint.setAntiAlias(true);
+        centerDotPaint.setStyle(Paint.Style.FILL);
+        centerDotPaint.setColor(r.getColor(R.color.colorAccent));
+
+        alarmPaint.setAntiAlias(true);
+        alarmPaint.setStyle(Paint.Style.STROKE);
+        alarmPaint.setColor(r.getColor(R.color.analog_clock_alarm_color));
+        alarmPaint.setStrokeWidth(circleStrokeWidth);
+
+        textPaint.setTypeface(Typeface.create("sans-serif-light", Typeface.NORMAL));
+        textPaint.setTextSize(textSizePixels);
+        textPaint.setAntiAlias(true);
+        textPaint.setSubpixelText(true);
+        textPaint.setColor(r.getColor(android.R.color.white));
+        textPaint.setTextAlign(Paint.Align.CENTER);
+
+        x = width / 2;
+        y = width / 2;
+        radius = width / 2 - circleStrokeWidth;
+        arcRect.top = y - radius;
+        arcRect.bottom = y + radius;
+        arcRect.left = x - radius;
+        arcRect.right = x + radius;
+
+        RectF arcRectText = new RectF(arcRect);
+        arcRectText.inset(2 * textSizePixels, 2 * textSizePixels);
+        datePath.addArc(arcRectText, 180f, 180f);
+
+        arcRectText = new RectF(arcRect);
+        arcRectText.inset(textSizePixels, textSizePixels);
+        alarmPath.addArc(arcRectText, 180f, -180f);
+
+        Paint circlePaint = new Paint();
+        circlePaint.setAntiAlias(true);
+        circlePaint.setStyle(Paint.Style.STROKE);
+        circlePaint.setColor(r.getColor(R.color.colorPrimary));
+        circlePaint.setStrokeWidth(circleStrokeWidth);
+
+        Paint bgPaint = new Paint();
+        bgPaint.setAntiAlias(true);
+        bgPaint.setStyle(Paint.Style.FILL);
+        bgPaint.setColor(r.getColor(R.color.analog_clock_bg_color));
+
+        staticLayer = Bitmap.createBitmap(width, width, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(staticLayer);
+        canvas.drawArc(arcRect, 0, 360, true, bgPaint);
+        canvas.drawArc(arcRect, 0, 360, false, circlePaint);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded pool of the ARGB_8888 bitmaps the clock widgets render into every minute.
+ * A pooled bitmap is reconfigured to the requested size if its allocation is big
+ * enough so the slightly changing width of the time string does not cause a miss.
+ *
+ * Bitmaps handed to a RemoteViews must only be released after
+ * {@link android.appwidget.AppWidgetManager#updateAppWidget} or
+ * {@link android.appwidget.AppWidgetManager#partiallyUpdateAppWidget} returned.
+ * The RemoteViews are parceled synchronously in these calls so the pixels
+ * have been copied to the host by then.
+ */
+class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    private static final int MAX_POOL_SIZE = 8;
+    private static final long MAX_POOL_BYTES = 8 * 1024 * 1024;
+    // log the counters once an hour with two widgets
+    private static final int STATS_INTERVAL = 120;
+
+    private static final LinkedList<Bitmap> sPool = new LinkedList<Bitmap>();
+    private static long sPoolBytes;
+    private static int sHits;
+    private static int sMisses;
+
+    /**
+     * @return a cleared bitmap of the given size
+     */
+    static synchronized Bitmap obtain(int width, int height) {
+        final long needed = (long) width * height * 4;
+        Bitmap best = null;
+        for (Bitmap b : sPool) {
+            if (b.getAllocationByteCount() >= needed
+                    && (best == null || b.getAllocationByteCount() < best.getAllocationByteCount())) {
+                best = b;
+            }
+        }
+        Bitmap result;
+        if (best != null) {
+            sPool.remove(best);
+            sPoolBytes -= best.getAllocationByteCount();
+            if (best.getWidth() != width || best.getHeight() != height) {
+                best.reconfigure(width, height, Bitmap.Config.ARGB_8888);
+            }
+            best.eraseColor(Color.TRANSPARENT);
+            result = best;
+            sHits++;
+        } else {
+            result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            sMisses++;
+        }
+        if ((sHits + sMisses) % STATS_INTERVAL == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, getStats());
+        }
+        return result;
+    }
+
+    static synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || sPool.contains(bitmap)) {
+            return;
+        }
+        final int size = bitmap.getAllocationByteCount();
+        if (size > MAX_POOL_BYTES) {
+            return;
+        }
+        sPool.addFirst(bitmap);
+        sPoolBytes += size;
+        // drop the least recently released ones
+        Iterator<Bitmap> it = sPool.descendingIterator();
+        while (it.hasNext() && (sPool.size() > MAX_POOL_SIZE || sPoolBytes > MAX_POOL_BYTES)) {
+            Bitmap b = it.next();
+            it.remove();
+            sPoolBytes -= b.getAllocationByteCount();
+        }
+    }
+
+    static void release(List<Bitmap> bitmaps) {
+        for (Bitmap b : bitmaps) {
+            release(b);
+        }
+        bitmaps.clear();
+    }
+
+    static synchronized String getStats() {
+        return "hits=" + sHits + " misses=" + sMisses + " pooled=" + sPool.size()
+                + " bytes=" + sPoolBytes;
+    }
+}
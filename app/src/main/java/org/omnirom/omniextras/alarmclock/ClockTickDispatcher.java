@@ -0,0 +1,129 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fans out the time tick of {@link ClockTickService} to all clock widget providers.
+ * All clock rendering runs on a single background thread and the RemoteViews
+ * of one tick are pushed together.
+ */
+class ClockTickDispatcher {
+    private static final String TAG = "ClockTickDispatcher";
+
+    interface Client {
+        /**
+         * @return true if any widget of the client must be updated every minute
+         */
+        boolean needsTimeTick(Context context);
+
+        void onTimeTick(Context context, AppWidgetManager appWidgetManager, WidgetUpdateBatch batch);
+    }
+
+    interface RenderTask {
+        void render(Context context, AppWidgetManager appWidgetManager, WidgetUpdateBatch batch);
+    }
+
+    // add new clock providers here
+    private static final Client[] sClients = new Client[] {
+            CustomAppWidgetProvider.TICK_CLIENT,
+            CustomAnalogAppWidgetProvider.TICK_CLIENT
+    };
+
+    private static final ExecutorService sRenderExecutor = Executors.newSingleThreadExecutor();
+
+    static void dispatchTick(Context context) {
+        final Context appContext = context.getApplicationContext();
+        sRenderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+                if (appWidgetManager == null) {
+                    return;
+                }
+                WidgetUpdateBatch batch = new WidgetUpdateBatch();
+                for (Client client : sClients) {
+                    client.onTimeTick(appContext, appWidgetManager, batch);
+                }
+                batch.push(appWidgetManager);
+            }
+        });
+    }
+
+    /**
+     * Run the task on the render thread and push its result.
+     *
+     * @param result - pending result of the calling receiver or null
+     * @param updateService - check if {@link ClockTickService} is still needed afterwards
+     * @param task - the rendering to do or null
+     */
+    static void post(Context context, final BroadcastReceiver.PendingResult result,
+                     final boolean updateService, final RenderTask task) {
+        final Context appContext = context.getApplicationContext();
+        sRenderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(appContext);
+                    if (task != null && appWidgetManager != null) {
+                        WidgetUpdateBatch batch = new WidgetUpdateBatch();
+                        task.render(appContext, appWidgetManager, batch);
+                        batch.push(appWidgetManager);
+                    }
+                    if (updateService) {
+                        updateTickService(appContext);
+                    }
+                } finally {
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * The time tick service is only running while a client needs it.
+     */
+    private static void updateTickService(Context context) {
+        boolean needsTimeTick = false;
+        for (Client client : sClients) {
+            if (client.needsTimeTick(context)) {
+                needsTimeTick = true;
+                break;
+            }
+        }
+        if (CustomAppWidgetProvider.LOGGING) {
+            Log.i(TAG, "updateTickService needsTimeTick = " + needsTimeTick);
+        }
+        if (needsTimeTick) {
+            context.startService(new Intent(context, ClockTickService.class));
+        } else {
+            context.stopService(new Intent(context, ClockTickService.class));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Decides which time ticks are rendered. While the display is off nobody can
+ * see the widgets so the ticks are only counted and a single catch up render
+ * is done when the display is turned on again.
+ *
+ * Only called from the main thread of {@link ClockTickService}.
+ */
+class ClockTickScheduler {
+    private static final String TAG = "ClockTickScheduler";
+
+    private boolean mInteractive;
+    private int mSkippedTicks;
+
+    ClockTickScheduler(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mInteractive = pm == null || pm.isInteractive();
+    }
+
+    void onReceive(Context context, String action) {
+        if (Intent.ACTION_TIME_TICK.equals(action)) {
+            if (mInteractive) {
+                ClockTickDispatcher.dispatchTick(context);
+            } else {
+                mSkippedTicks++;
+            }
+        } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            mInteractive = false;
+        } else if (Intent.ACTION_SCREEN_ON.equals(action)
+                || Intent.ACTION_USER_PRESENT.equals(action)) {
+            mInteractive = true;
+            // SCREEN_ON and USER_PRESENT usually come both - render only once
+            if (mSkippedTicks != 0) {
+                if (CustomAppWidgetProvider.LOGGING) {
+                    Log.i(TAG, "catch up after " + mSkippedTicks + " skipped ticks");
+                }
+                mSkippedTicks = 0;
+                ClockTickDispatcher.dispatchTick(context);
+            }
+        }
+    }
+}
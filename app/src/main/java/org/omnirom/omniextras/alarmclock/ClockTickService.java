@@ -0,0 +1,78 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * Single ACTION_TIME_TICK listener for all clock widgets.
+ * There is no other way to use ACTION_TIME_TICK then this.
+ * The screen state broadcasts are also only delivered to registered receivers.
+ */
+public class ClockTickService extends Service {
+    private static final String TAG = "ClockTickService";
+
+    private ClockTickScheduler mScheduler;
+
+    private final BroadcastReceiver mClockChangedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (CustomAppWidgetProvider.LOGGING) {
+                Log.i(TAG, "onReceive: " + action);
+            }
+            mScheduler.onReceive(context, action);
+        }
+    };
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = new ClockTickScheduler(this);
+        IntentFilter intentFilter = new IntentFilter();
+        intentFilter.addAction(Intent.ACTION_TIME_TICK);
+        intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        intentFilter.addAction(Intent.ACTION_SCREEN_ON);
+        intentFilter.addAction(Intent.ACTION_USER_PRESENT);
+        registerReceiver(mClockChangedReceiver, intentFilter);
+        if (CustomAppWidgetProvider.LOGGING) {
+            Log.i(TAG, "onCreate");
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        unregisterReceiver(mClockChangedReceiver);
+        if (CustomAppWidgetProvider.LOGGING) {
+            Log.i(TAG, "onDestroy");
+        }
+    }
+}
@@ -29,11 +29,17 @@ import android.preference.PreferenceManager;
 import android.view.View;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
+import org.omnirom.omniextras.preference.WidgetConfigStore;
 
 public class CustomAnalogAppWidgetConfigure extends PreferenceActivity {
 
-    public static final String KEY_SHOW_ALARM = "show_alarm";
-    public static final String KEY_SHOW_DATE = "show_date";
+    public static final String KEY_SHOW_ALARM = WidgetConfig.KEY_SHOW_ALARM;
+    public static final String KEY_SHOW_DATE = WidgetConfig.KEY_SHOW_DATE;
+
+    private static final String[] WIDGET_KEYS = {
+            KEY_SHOW_ALARM, KEY_SHOW_DATE
+    };
 
     private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
 
@@ -57,8 +63,10 @@ public class CustomAnalogAppWidgetConfigure extends PreferenceActivity {
         }
 
         addPreferencesFromResource(R.xml.custom_analog_appwidget_configure);
-        initPreference(KEY_SHOW_ALARM);
-        initPreference(KEY_SHOW_DATE);
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+        initPreference(KEY_SHOW_ALARM, editor);
+        initPreference(KEY_SHOW_DATE, editor);
+        editor.apply();
     }
 
     public void handleOkClick(View v) {
@@ -69,31 +77,20 @@ public class CustomAnalogAppWidgetConfigure extends PreferenceActivity {
         finish();
     }
 
-    private void initPreference(String key) {
+    private void initPreference(String key, SharedPreferences.Editor editor) {
         CheckBoxPreference b = (CheckBoxPreference) findPreference(key);
-        b.setKey(key + "_" + String.valueOf(mAppWidgetId));
+        b.setKey(WidgetConfigStore.getKey(key, mAppWidgetId));
         b.setDefaultValue(true);
         b.setChecked(true);
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().putBoolean(b.getKey(), true).commit();
+        editor.putBoolean(b.getKey(), true);
     }
 
-    public static void clearPrefs(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().remove(KEY_SHOW_ALARM + "_" + id).commit();
-        prefs.edit().remove(KEY_SHOW_DATE + "_" + id).commit();
+    public static void clearPrefs(Context context, int[] ids) {
+        WidgetConfigStore.clear(context, WIDGET_KEYS, ids);
     }
 
-    public static void remapPrefs(Context context, int oldId, int newId) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        boolean oldValue = prefs.getBoolean(KEY_SHOW_ALARM + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_SHOW_ALARM + "_" + newId, oldValue).commit();
-        oldValue = prefs.getBoolean(KEY_SHOW_DATE + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_SHOW_DATE + "_" + newId, oldValue).commit();
-
-        prefs.edit().remove(KEY_SHOW_ALARM + "_" + oldId).commit();
-        prefs.edit().remove(KEY_SHOW_DATE + "_" + oldId).commit();
+    public static void remapPrefs(Context context, int[] oldIds, int[] newIds) {
+        WidgetConfigStore.remap(context, WIDGET_KEYS, oldIds, newIds);
     }
 
     @Override
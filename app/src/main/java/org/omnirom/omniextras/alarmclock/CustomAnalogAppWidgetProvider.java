@@ -18,66 +18,42 @@ package org.omnirom.omniextras.alarmclock;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.appwidget.AppWidgetProviderInfo;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.util.Log;
 import android.widget.RemoteViews;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
 
 import java.util.Date;
 
 public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
     private static final String TAG = "AnalogAppWidgetProvider";
 
-    // there is no other way to use ACTION_TIME_TICK then this
-    public static class AnalogClockUpdateService extends Service {
-        private final BroadcastReceiver mClockChangedReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-                if (CustomAppWidgetProvider.LOGGING) {
-                    Log.i(TAG, "AnalogClockUpdateService:onReceive: " + action);
-                }
-                updateAllClocks(context);
-            }
-        };
-
+    static final ClockTickDispatcher.Client TICK_CLIENT = new ClockTickDispatcher.Client() {
         @Override
-        public IBinder onBind(Intent intent) {
-            return null;
-        }
-
-        @Override
-        public void onCreate() {
-            super.onCreate();
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(Intent.ACTION_TIME_TICK);
-            registerReceiver(mClockChangedReceiver, intentFilter);
-            if (CustomAppWidgetProvider.LOGGING) {
-                Log.i(TAG, "AnalogClockUpdateService:onCreate");
+        public boolean needsTimeTick(Context context) {
+            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+            if (appWidgetManager != null) {
+                ComponentName componentName = new ComponentName(context, CustomAnalogAppWidgetProvider.class);
+                return appWidgetManager.getAppWidgetIds(componentName).length != 0;
             }
+            return false;
         }
 
         @Override
-        public void onDestroy() {
-            super.onDestroy();
-            unregisterReceiver(mClockChangedReceiver);
-            if (CustomAppWidgetProvider.LOGGING) {
-                Log.i(TAG, "AnalogClockUpdateService:onDestroy");
-            }
+        public void onTimeTick(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+            updateAllClocks(context, appWidgetManager, batch);
         }
-    }
+    };
 
     @Override
     public void onEnabled(Context context) {
@@ -85,7 +61,6 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
         if (CustomAppWidgetProvider.LOGGING) {
             Log.i(TAG, "onEnabled");
         }
-        context.startService(new Intent(context, AnalogClockUpdateService.class));
     }
 
     @Override
@@ -94,7 +69,7 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
         if (CustomAppWidgetProvider.LOGGING) {
             Log.i(TAG, "onDisabled");
         }
-        context.stopService(new Intent(context, AnalogClockUpdateService.class));
+        ClockTickDispatcher.post(context, null, true, null);
     }
 
 
@@ -105,8 +80,8 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
             if (CustomAppWidgetProvider.LOGGING) {
                 Log.i(TAG, "onDeleted: " + id);
             }
-            CustomAnalogAppWidgetConfigure.clearPrefs(context, id);
         }
+        CustomAnalogAppWidgetConfigure.clearPrefs(context, appWidgetIds);
     }
 
     @Override
@@ -121,20 +96,31 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
             if (CustomAppWidgetProvider.LOGGING) {
                 Log.i(TAG, "onReceive: " + action);
             }
-            updateAllClocks(context);
+            ClockTickDispatcher.post(context, goAsync(), false, new ClockTickDispatcher.RenderTask() {
+                @Override
+                public void render(Context context, AppWidgetManager appWidgetManager,
+                                   WidgetUpdateBatch batch) {
+                    updateAllClocks(context, appWidgetManager, batch);
+                }
+            });
         }
     }
 
     @Override
-    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         super.onUpdate(context, appWidgetManager, appWidgetIds);
-        for (int appWidgetId : appWidgetIds) {
-            if (CustomAppWidgetProvider.LOGGING) {
-                Log.i(TAG, "onUpdate " + appWidgetId);
+        ClockTickDispatcher.post(context, goAsync(), true, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                for (int appWidgetId : appWidgetIds) {
+                    if (CustomAppWidgetProvider.LOGGING) {
+                        Log.i(TAG, "onUpdate " + appWidgetId);
+                    }
+                    updateClock(context, appWidgetManager, appWidgetId, batch);
+                }
             }
-            updateClock(context, appWidgetManager, appWidgetId);
-        }
-        context.startService(new Intent(context, AnalogClockUpdateService.class));
+        });
     }
 
     @Override
@@ -144,37 +130,41 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
             if (CustomAppWidgetProvider.LOGGING) {
                 Log.i(TAG, "onRestored " + oldWidgetId + " " + newWidgetIds[i]);
             }
-            CustomAnalogAppWidgetConfigure.remapPrefs(context, oldWidgetId, newWidgetIds[i]);
             i++;
         }
+        CustomAnalogAppWidgetConfigure.remapPrefs(context, oldWidgetIds, newWidgetIds);
     }
 
-    public static void updateAllClocks(Context context) {
+    private static void updateAllClocks(Context context, AppWidgetManager appWidgetManager,
+                                        WidgetUpdateBatch batch) {
         if (CustomAppWidgetProvider.LOGGING) {
             Log.i(TAG, "updateClocks at = " + new Date());
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        if (appWidgetManager != null) {
-            ComponentName componentName = new ComponentName(context, CustomAnalogAppWidgetProvider.class);
-            int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                updateClock(context, appWidgetManager, appWidgetId);
-            }
+        ComponentName componentName = new ComponentName(context, CustomAnalogAppWidgetProvider.class);
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+        for (int appWidgetId : appWidgetIds) {
+            updateClock(context, appWidgetManager, appWidgetId, batch);
         }
     }
 
-    public static void updateAfterConfigure(Context context, int appWidgetId) {
+    public static void updateAfterConfigure(Context context, final int appWidgetId) {
         if (CustomAppWidgetProvider.LOGGING) {
             Log.i(TAG, "updateAfterConfigure");
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        updateClock(context, appWidgetManager, appWidgetId);
+        ClockTickDispatcher.post(context, null, true, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                updateClock(context, appWidgetManager, appWidgetId, batch);
+            }
+        });
     }
 
-    private static void updateClock(
-            Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
-        boolean showAlarm = WidgetUtils.isShowingAlarm(context, appWidgetId, false);
-        boolean showDate = WidgetUtils.isShowingDate(context, appWidgetId, false);
+    private static void updateClock(Context context, AppWidgetManager appWidgetManager,
+                                    int appWidgetId, WidgetUpdateBatch batch) {
+        WidgetConfig config = WidgetConfig.get(context, appWidgetId, WidgetConfig.TYPE_ANALOG_CLOCK);
+        boolean showAlarm = config.showAlarm;
+        boolean showDate = config.showDate;
 
         if (CustomAppWidgetProvider.LOGGING) {
             Log.i(TAG, "updateClock " + appWidgetId);
@@ -193,6 +183,7 @@ public class CustomAnalogAppWidgetProvider extends AppWidgetProvider {
         Bitmap analogClock = WidgetUtils.createAnalogClockBitmap(context, showAlarm, showDate);
         widget.setImageViewBitmap(R.id.the_clock_image, analogClock);
 
-        appWidgetManager.updateAppWidget(appWidgetId, widget);
+        batch.add(appWidgetId, widget, false);
+        batch.addBitmap(analogClock);
     }
 }
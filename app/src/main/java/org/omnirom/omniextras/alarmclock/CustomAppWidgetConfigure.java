@@ -34,15 +34,23 @@ import android.view.View;
 import org.omnirom.omniextras.R;
 import org.omnirom.omniextras.preference.ColorPickerPreference;
 import org.omnirom.omniextras.preference.FontPreference;
+import org.omnirom.omniextras.preference.WidgetConfig;
+import org.omnirom.omniextras.preference.WidgetConfigStore;
 
 public class CustomAppWidgetConfigure extends PreferenceActivity implements
         Preference.OnPreferenceChangeListener {
 
-    public static final String KEY_SHOW_ALARM = "show_alarm";
-    public static final String KEY_SHOW_DATE = "show_date";
-    public static final String KEY_CLOCK_FONT = "clock_font";
-    public static final String KEY_CLOCK_COLOR = "clock_color";
-    public static final String KEY_CLOCK_SHADOW = "clock_shadow";
+    public static final String KEY_SHOW_ALARM = WidgetConfig.KEY_SHOW_ALARM;
+    public static final String KEY_SHOW_DATE = WidgetConfig.KEY_SHOW_DATE;
+    public static final String KEY_CLOCK_FONT = WidgetConfig.KEY_CLOCK_FONT;
+    public static final String KEY_CLOCK_COLOR = WidgetConfig.KEY_CLOCK_COLOR;
+    public static final String KEY_CLOCK_SHADOW = WidgetConfig.KEY_CLOCK_SHADOW;
+    public static final String KEY_NATIVE_CLOCK = WidgetConfig.KEY_NATIVE_CLOCK;
+
+    private static final String[] WIDGET_KEYS = {
+            KEY_SHOW_ALARM, KEY_SHOW_DATE, KEY_CLOCK_FONT, KEY_CLOCK_COLOR, KEY_CLOCK_SHADOW,
+            KEY_NATIVE_CLOCK
+    };
 
     private int mAppWidgetId = AppWidgetManager.INVALID_APPWIDGET_ID;
     private FontPreference mClockFont;
@@ -68,9 +76,12 @@ public class CustomAppWidgetConfigure extends PreferenceActivity implements
         }
 
         addPreferencesFromResource(R.xml.custom_appwidget_configure);
-        initPreference(KEY_SHOW_ALARM);
-        initPreference(KEY_SHOW_DATE);
-        initPreference(KEY_CLOCK_SHADOW);
+        SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+        initPreference(KEY_SHOW_ALARM, true, editor);
+        initPreference(KEY_SHOW_DATE, true, editor);
+        initPreference(KEY_CLOCK_SHADOW, true, editor);
+        initPreference(KEY_NATIVE_CLOCK, WidgetConfig.DEFAULT_NATIVE_CLOCK, editor);
+        editor.apply();
 
         mClockFont = (FontPreference) findPreference(KEY_CLOCK_FONT);
         mClockFont.setKey(KEY_CLOCK_FONT + "_" + String.valueOf(mAppWidgetId));
@@ -93,44 +104,20 @@ public class CustomAppWidgetConfigure extends PreferenceActivity implements
         finish();
     }
 
-    private void initPreference(String key) {
+    private void initPreference(String key, boolean value, SharedPreferences.Editor editor) {
         CheckBoxPreference b = (CheckBoxPreference) findPreference(key);
-        b.setKey(key + "_" + String.valueOf(mAppWidgetId));
-        b.setDefaultValue(true);
-        b.setChecked(true);
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().putBoolean(b.getKey(), true).commit();
+        b.setKey(WidgetConfigStore.getKey(key, mAppWidgetId));
+        b.setDefaultValue(value);
+        b.setChecked(value);
+        editor.putBoolean(b.getKey(), value);
     }
 
-    public static void clearPrefs(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().remove(KEY_SHOW_ALARM + "_" + id).commit();
-        prefs.edit().remove(KEY_SHOW_DATE + "_" + id).commit();
-        prefs.edit().remove(KEY_CLOCK_FONT + "_" + id).commit();
-        prefs.edit().remove(KEY_CLOCK_COLOR + "_" + id).commit();
-        prefs.edit().remove(KEY_CLOCK_SHADOW + "_" + id).commit();
+    public static void clearPrefs(Context context, int[] ids) {
+        WidgetConfigStore.clear(context, WIDGET_KEYS, ids);
     }
 
-
-    public static void remapPrefs(Context context, int oldId, int newId) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        boolean oldValue = prefs.getBoolean(KEY_SHOW_ALARM + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_SHOW_ALARM + "_" + newId, oldValue).commit();
-        oldValue = prefs.getBoolean(KEY_SHOW_DATE + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_SHOW_DATE + "_" + newId, oldValue).commit();
-        oldValue = prefs.getBoolean(KEY_CLOCK_SHADOW + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_CLOCK_SHADOW + "_" + newId, oldValue).commit();
-        String oldString = prefs.getString(KEY_CLOCK_FONT + "_" + oldId, null);
-        prefs.edit().putString(KEY_CLOCK_FONT + "_" + newId, oldString).commit();
-        int oldInt = prefs.getInt(KEY_CLOCK_COLOR + "_" + oldId, Color.WHITE);
-        prefs.edit().putInt(KEY_CLOCK_COLOR + "_" + newId, oldInt).commit();
-
-        prefs.edit().remove(KEY_SHOW_ALARM + "_" + oldId).commit();
-        prefs.edit().remove(KEY_SHOW_DATE + "_" + oldId).commit();
-        prefs.edit().remove(KEY_CLOCK_FONT + "_" + oldId).commit();
-        prefs.edit().remove(KEY_CLOCK_COLOR + "_" + oldId).commit();
-        prefs.edit().remove(KEY_CLOCK_SHADOW + "_" + oldId).commit();
+    public static void remapPrefs(Context context, int[] oldIds, int[] newIds) {
+        WidgetConfigStore.remap(context, WIDGET_KEYS, oldIds, newIds);
     }
 
     @Override
@@ -144,7 +131,7 @@ public class CustomAppWidgetConfigure extends PreferenceActivity implements
             String hexColor = String.format("#%08X", mClockColor.getColor());
             mClockColor.setSummary(hexColor);
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-            prefs.edit().putInt(mClockColor.getKey(), mClockColor.getColor()).commit();
+            prefs.edit().putInt(mClockColor.getKey(), mClockColor.getColor()).apply();
         }
         return true;
     }
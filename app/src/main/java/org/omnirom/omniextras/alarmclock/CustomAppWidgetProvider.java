@@ -18,67 +18,59 @@ package org.omnirom.omniextras.alarmclock;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.app.Service;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.appwidget.AppWidgetProviderInfo;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.Typeface;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.TypedValue;
 import android.view.View;
 import android.widget.RemoteViews;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
 
 import java.util.Date;
+import java.util.Locale;
 
 public class CustomAppWidgetProvider extends AppWidgetProvider {
     private static final String TAG = "CustomAppWidgetProvider";
     public static final boolean LOGGING = false;
 
-    // there is no other way to use ACTION_TIME_TICK then this
-    public static class ClockUpdateService extends Service {
-        private final BroadcastReceiver mClockChangedReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-                if (LOGGING) {
-                    Log.i(TAG, "ClockUpdateService:onReceive: " + action);
-                }
-                updateAllClocks(context);
-            }
-        };
+    // what the host currently shows per appWidgetId - only used on the render thread
+    private static final SparseArray<String> sTimeFingerprints = new SparseArray<String>();
+    private static final SparseArray<String> sDateFingerprints = new SparseArray<String>();
 
+    static final ClockTickDispatcher.Client TICK_CLIENT = new ClockTickDispatcher.Client() {
         @Override
-        public IBinder onBind(Intent intent) {
-            return null;
+        public boolean needsTimeTick(Context context) {
+            // only needed if a widget renders the time to a bitmap
+            AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+            if (appWidgetManager != null) {
+                ComponentName componentName = new ComponentName(context, CustomAppWidgetProvider.class);
+                int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+                for (int appWidgetId : appWidgetIds) {
+                    if (!WidgetConfig.get(context, appWidgetId, WidgetConfig.TYPE_CLOCK).nativeClock) {
+                        return true;
+                    }
+                }
+            }
+            return false;
         }
 
         @Override
-        public void onCreate() {
-            super.onCreate();
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(Intent.ACTION_TIME_TICK);
-            registerReceiver(mClockChangedReceiver, intentFilter);
+        public void onTimeTick(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+            updateAllClocks(context, appWidgetManager, batch);
         }
-
-        @Override
-        public void onDestroy() {
-            super.onDestroy();
-            unregisterReceiver(mClockChangedReceiver);
-            if (LOGGING) {
-                Log.i(TAG, "ClockUpdateService:onDestroy");
-            }
-        }
-    }
+    };
 
     @Override
     public void onEnabled(Context context) {
@@ -86,7 +78,6 @@ public class CustomAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onEnabled");
         }
-        context.startService(new Intent(context, ClockUpdateService.class));
     }
 
     @Override
@@ -95,18 +86,27 @@ public class CustomAppWidgetProvider extends AppWidgetProvider {
         if (LOGGING) {
             Log.i(TAG, "onDisabled");
         }
-        context.stopService(new Intent(context, ClockUpdateService.class));
+        ClockTickDispatcher.post(context, null, true, null);
     }
 
     @Override
-    public void onDeleted(Context context, int[] appWidgetIds) {
+    public void onDeleted(Context context, final int[] appWidgetIds) {
         super.onDeleted(context, appWidgetIds);
         for (int id : appWidgetIds) {
             if (LOGGING) {
                 Log.i(TAG, "onDeleted: " + id);
             }
-            CustomAppWidgetConfigure.clearPrefs(context, id);
         }
+        CustomAppWidgetConfigure.clearPrefs(context, appWidgetIds);
+        ClockTickDispatcher.post(context, null, true, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                for (int id : appWidgetIds) {
+                    clearFingerprint(id);
+                }
+            }
+        });
     }
 
     @Override
@@ -116,9 +116,9 @@ public class CustomAppWidgetProvider extends AppWidgetProvider {
             if (LOGGING) {
                 Log.i(TAG, "onRestored " + oldWidgetId + " " + newWidgetIds[i]);
             }
-            CustomAppWidgetConfigure.remapPrefs(context, oldWidgetId, newWidgetIds[i]);
             i++;
         }
+        CustomAppWidgetConfigure.remapPrefs(context, oldWidgetIds, newWidgetIds);
     }
 
     @Override
@@ -135,110 +135,209 @@ public class CustomAppWidgetProvider extends AppWidgetProvider {
             if (LOGGING) {
                 Log.i(TAG, "onReceive: " + action);
             }
-            updateAllClocks(context);
+            ClockTickDispatcher.post(context, goAsync(), false, new ClockTickDispatcher.RenderTask() {
+                @Override
+                public void render(Context context, AppWidgetManager appWidgetManager,
+                                   WidgetUpdateBatch batch) {
+                    updateAllClocks(context, appWidgetManager, batch);
+                }
+            });
         }
     }
 
     @Override
-    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, final int[] appWidgetIds) {
         super.onUpdate(context, appWidgetManager, appWidgetIds);
-        for (int appWidgetId : appWidgetIds) {
-            if (LOGGING) {
-                Log.i(TAG, "onUpdate " + appWidgetId);
+        ClockTickDispatcher.post(context, goAsync(), true, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                for (int appWidgetId : appWidgetIds) {
+                    if (LOGGING) {
+                        Log.i(TAG, "onUpdate " + appWidgetId);
+                    }
+                    updateClock(context, appWidgetManager, appWidgetId, true, batch);
+                }
             }
-            updateClock(context, appWidgetManager, appWidgetId);
-        }
-        context.startService(new Intent(context, ClockUpdateService.class));
+        });
     }
 
     @Override
     public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
-                                          int appWidgetId, Bundle newOptions) {
+                                          final int appWidgetId, Bundle newOptions) {
         if (LOGGING) {
             Log.i(TAG, "onAppWidgetOptionsChanged");
         }
-        AppWidgetManager widgetManager = AppWidgetManager.getInstance(context);
-        updateClock(context, widgetManager, appWidgetId);
+        ClockTickDispatcher.post(context, goAsync(), false, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                updateClock(context, appWidgetManager, appWidgetId, true, batch);
+            }
+        });
     }
 
-    public static void updateAfterConfigure(Context context, int appWidgetId) {
+    public static void updateAfterConfigure(Context context, final int appWidgetId) {
         if (LOGGING) {
             Log.i(TAG, "updateAfterConfigure");
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        updateClock(context, appWidgetManager, appWidgetId);
+        ClockTickDispatcher.post(context, null, true, new ClockTickDispatcher.RenderTask() {
+            @Override
+            public void render(Context context, AppWidgetManager appWidgetManager,
+                               WidgetUpdateBatch batch) {
+                updateClock(context, appWidgetManager, appWidgetId, true, batch);
+            }
+        });
     }
 
-    public static void updateAllClocks(Context context) {
+    private static void updateAllClocks(Context context, AppWidgetManager appWidgetManager,
+                                        WidgetUpdateBatch batch) {
         if (LOGGING) {
             Log.i(TAG, "updateClocks at = " + new Date());
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        if (appWidgetManager != null) {
-            ComponentName componentName = new ComponentName(context, CustomAppWidgetProvider.class);
-            int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                updateClock(context, appWidgetManager, appWidgetId);
-            }
+        ComponentName componentName = new ComponentName(context, CustomAppWidgetProvider.class);
+        int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+        for (int appWidgetId : appWidgetIds) {
+            updateClock(context, appWidgetManager, appWidgetId, false, batch);
         }
     }
 
     private static void updateClock(
-            Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
-        boolean showAlarm = WidgetUtils.isShowingAlarm(context, appWidgetId, true);
-        boolean showDate = WidgetUtils.isShowingDate(context, appWidgetId, true);
-        Typeface clockFont = WidgetUtils.getClockFont(context, appWidgetId);
-        int clockColor = WidgetUtils.getClockColor(context, appWidgetId);
-        boolean clockShadow = WidgetUtils.isClockShadow(context, appWidgetId);
+            Context context, AppWidgetManager appWidgetManager, int appWidgetId, boolean force,
+            WidgetUpdateBatch batch) {
+        WidgetConfig config = WidgetConfig.get(context, appWidgetId, WidgetConfig.TYPE_CLOCK);
+        boolean showAlarm = config.showAlarm;
+        boolean showDate = config.showDate;
+        String clockFontPath = config.clockFontPath;
+        int clockColor = config.clockColor;
+        boolean clockShadow = config.clockShadow;
+        boolean nativeClock = config.nativeClock;
 
-        if (LOGGING) {
-            Log.i(TAG, "updateClock " + appWidgetId);
-        }
-        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.custom_appwidget);
-
-        widget.setViewVisibility(R.id.the_date_image, showDate ? View.VISIBLE : View.GONE);
-
-        // Launch clock when clicking on the time in the widget only if not a lock screen widget
-        Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
-        if (newOptions != null &&
-                newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1)
-                        != AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD) {
-            widget.setOnClickPendingIntent(R.id.the_clock_image,
-                    PendingIntent.getActivity(context, 0, WidgetUtils.getClockIntent(), 0));
-            widget.setOnClickPendingIntent(R.id.the_date_image,
-                    PendingIntent.getActivity(context, 0, WidgetUtils.getCalendarIntent(new Date()), 0));
-        }
         float fontSize = context.getResources().getDimension(R.dimen.widget_custom_font_size);
         CharSequence timeFormat = DateFormat.is24HourFormat(context) ?
                 WidgetUtils.getRaw24ModeFormat(false) :
                 WidgetUtils.getRaw12ModeFormat(false);
+        String nextAlarm = showAlarm ? WidgetUtils.getNextAlarm(context) : null;
+
+        // compare what would be rendered with what the host already shows
+        String timeFingerprint = getTimeFingerprint(nativeClock, timeFormat, clockFontPath,
+                fontSize, clockColor, clockShadow);
+        String dateFingerprint = getDateFingerprint(nextAlarm, clockColor, clockShadow,
+                showDate, showAlarm);
+        boolean fullUpdate = force || sTimeFingerprints.indexOfKey(appWidgetId) < 0;
+        boolean timeChanged = fullUpdate || !timeFingerprint.equals(sTimeFingerprints.get(appWidgetId));
+        boolean dateChanged = fullUpdate || !dateFingerprint.equals(sDateFingerprints.get(appWidgetId));
+        if (!timeChanged && !dateChanged) {
+            if (LOGGING) {
+                Log.i(TAG, "updateClock " + appWidgetId + " unchanged");
+            }
+            return;
+        }
 
-        final Bitmap textBitmap = WidgetUtils.createTimeBitmap(timeFormat.toString(),
-                clockFont, fontSize, clockColor, clockShadow, -1,
-                !DateFormat.is24HourFormat(context));
-        widget.setImageViewBitmap(R.id.the_clock_image, textBitmap);
+        if (LOGGING) {
+            Log.i(TAG, "updateClock " + appWidgetId + " full=" + fullUpdate
+                    + " time=" + timeChanged + " date=" + dateChanged);
+        }
+        RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.custom_appwidget);
+
+        if (fullUpdate) {
+            widget.setViewVisibility(R.id.the_date_image, showDate ? View.VISIBLE : View.GONE);
 
-        if (showAlarm || showDate) {
-            updateDate(context, widget, clockColor, clockShadow, showDate, showAlarm, showAlarm);
+            // Launch clock when clicking on the time in the widget only if not a lock screen widget
+            Bundle newOptions = appWidgetManager.getAppWidgetOptions(appWidgetId);
+            if (newOptions != null &&
+                    newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1)
+                            != AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD) {
+                PendingIntent clockIntent = PendingIntent.getActivity(context, 0,
+                        WidgetUtils.getClockIntent(), 0);
+                widget.setOnClickPendingIntent(R.id.the_clock_image, clockIntent);
+                widget.setOnClickPendingIntent(R.id.the_clock_text, clockIntent);
+                widget.setOnClickPendingIntent(R.id.the_clock_text_no_shadow, clockIntent);
+                // no date - only set on a full update so it would get stale at midnight
+                widget.setOnClickPendingIntent(R.id.the_date_image,
+                        PendingIntent.getActivity(context, 0, WidgetUtils.getCalendarIntent(null), 0));
+            }
         }
 
-        appWidgetManager.updateAppWidget(appWidgetId, widget);
-    }
+        if (timeChanged) {
+            if (nativeClock) {
+                // the host keeps the time up to date
+                int clockTextId = clockShadow ? R.id.the_clock_text : R.id.the_clock_text_no_shadow;
+                widget.setViewVisibility(R.id.the_clock_image, View.GONE);
+                widget.setViewVisibility(R.id.the_clock_text, clockShadow ? View.VISIBLE : View.GONE);
+                widget.setViewVisibility(R.id.the_clock_text_no_shadow,
+                        clockShadow ? View.GONE : View.VISIBLE);
+                widget.setTextViewTextSize(clockTextId, TypedValue.COMPLEX_UNIT_PX, fontSize);
+                widget.setTextColor(clockTextId, clockColor);
+                WidgetUtils.setTimeFormat(widget, (int) (fontSize / 3), clockTextId, 0);
+            } else {
+                Typeface clockFont = WidgetUtils.getClockFont(clockFontPath);
+                final Bitmap textBitmap = WidgetUtils.createTimeBitmap(timeFormat.toString(),
+                        String.valueOf(clockFontPath), clockFont, fontSize, clockColor, clockShadow, -1,
+                        !DateFormat.is24HourFormat(context));
+                widget.setViewVisibility(R.id.the_clock_image, View.VISIBLE);
+                widget.setViewVisibility(R.id.the_clock_text, View.GONE);
+                widget.setViewVisibility(R.id.the_clock_text_no_shadow, View.GONE);
+                widget.setImageViewBitmap(R.id.the_clock_image, textBitmap);
+                batch.addBitmap(textBitmap);
+            }
+        }
 
-    private static void updateDate(Context context, RemoteViews widget, int clockColor,
-                                   boolean clockShadow, boolean showDate, boolean showAlarm, boolean hasAlarm) {
-        if (showDate || showAlarm) {
-            float fontSize = context.getResources().getDimension(R.dimen.custom_widget_label_font_size);
-            Typeface dateFont = Typeface.create("sans-serif-light", Typeface.NORMAL);
-
-            Bitmap dateBitmap = WidgetUtils.createDataAlarmBitmap(context, dateFont, fontSize, clockColor,
-                    clockShadow, 0.15f, showDate, showAlarm);
-            if (dateBitmap != null) {
-                widget.setViewVisibility(R.id.the_date_image, View.VISIBLE);
-                widget.setImageViewBitmap(R.id.the_date_image, dateBitmap);
+        if (dateChanged) {
+            if (showAlarm || showDate) {
+                updateDate(context, widget, batch, nextAlarm, clockColor, clockShadow, showDate,
+                        showAlarm);
             } else {
                 widget.setViewVisibility(R.id.the_date_image, View.GONE);
             }
         }
+
+        batch.add(appWidgetId, widget, !fullUpdate);
+
+        sTimeFingerprints.put(appWidgetId, timeFingerprint);
+        sDateFingerprints.put(appWidgetId, dateFingerprint);
+    }
+
+    private static void updateDate(Context context, RemoteViews widget, WidgetUpdateBatch batch,
+                                   String nextAlarm, int clockColor, boolean clockShadow,
+                                   boolean showDate, boolean showAlarm) {
+        float fontSize = context.getResources().getDimension(R.dimen.custom_widget_label_font_size);
+        Typeface dateFont = Typeface.create("sans-serif-light", Typeface.NORMAL);
+
+        Bitmap dateBitmap = WidgetUtils.createDataAlarmBitmap(context, nextAlarm, dateFont, fontSize,
+                clockColor, clockShadow, 0.15f, showDate, showAlarm);
+        if (dateBitmap != null) {
+            widget.setViewVisibility(R.id.the_date_image, View.VISIBLE);
+            widget.setImageViewBitmap(R.id.the_date_image, dateBitmap);
+            batch.addBitmap(dateBitmap);
+        } else {
+            widget.setViewVisibility(R.id.the_date_image, View.GONE);
+        }
+    }
+
+    /**
+     * @return string describing everything that ends up in the time bitmap or TextClock
+     */
+    private static String getTimeFingerprint(boolean nativeClock, CharSequence timeFormat,
+                                             String clockFontPath, float fontSize, int clockColor,
+                                             boolean clockShadow) {
+        String time = nativeClock ? "native" + Locale.getDefault()
+                : WidgetUtils.getTimeString(timeFormat.toString());
+        return time + "|" + clockFontPath + "|" + fontSize + "|" + clockColor + "|" + clockShadow;
+    }
+
+    /**
+     * @return string describing everything that ends up in the date and alarm bitmap
+     */
+    private static String getDateFingerprint(String nextAlarm, int clockColor, boolean clockShadow,
+                                             boolean showDate, boolean showAlarm) {
+        return DateFormat.format("yyyyMMdd", new Date()) + "|" + Locale.getDefault() + "|"
+                + nextAlarm + "|" + clockColor + "|" + clockShadow + "|" + showDate + "|"
+                + showAlarm;
+    }
+
+    private static void clearFingerprint(int appWidgetId) {
+        sTimeFingerprints.delete(appWidgetId);
+        sDateFingerprints.delete(appWidgetId);
     }
 }
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.text.DateFormatSymbols;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Pre-rasterized glyphs of the digital clock. The digits, the time separators
+ * and the am/pm markers are drawn once per font, size, color and shadow so the
+ * time bitmap of every minute can be put together by copying atlas cells.
+ */
+class GlyphAtlas {
+    private static final String TAG = "GlyphAtlas";
+
+    // an atlas of the default clock font size is a few MB so keep only some
+    private static final int MAX_CACHED_ATLASES = 3;
+    private static final float SHADOW_RADIUS = 5.0f;
+    private static final String ATLAS_GLYPHS = "0123456789:. ";
+    // difference of a glyph pair to the sum of its glyphs that counts as kerning
+    private static final float KERNING_TOLERANCE = 0.5f;
+
+    private static final LinkedHashMap<String, GlyphAtlas> sAtlasCache =
+            new LinkedHashMap<String, GlyphAtlas>(MAX_CACHED_ATLASES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GlyphAtlas> eldest) {
+                    return size() > MAX_CACHED_ATLASES;
+                }
+            };
+
+    private static class Cell {
+        final Rect bounds;
+        final float advance;
+
+        Cell(Rect bounds, float advance) {
+            this.bounds = bounds;
+            this.advance = advance;
+        }
+    }
+
+    private final SparseArray<Cell> mGlyphs = new SparseArray<Cell>();
+    private final Rect mDstRect = new Rect();
+    private final String mAmString;
+    private final String mPmString;
+    private final Cell mAmCell;
+    private final Cell mPmCell;
+    // null if the font kerns the atlas glyphs - cells can not be placed then
+    private final Bitmap mAtlas;
+    private final int mHeight;
+    private final int mPadding;
+
+    /**
+     * @param fontKey - stable identifier of the typeface e.g. the font file path
+     */
+    static GlyphAtlas get(String fontKey, Typeface typeface, float textSizePixels, int textColor,
+                          boolean shadow, float letterSpacing) {
+        final Locale locale = Locale.getDefault();
+        // a reloaded font file is a new typeface instance
+        final String key = fontKey + "|" + System.identityHashCode(typeface) + "|" + textSizePixels
+                + "|" + textColor + "|" + shadow + "|" + letterSpacing + "|" + locale;
+        synchronized (sAtlasCache) {
+            GlyphAtlas atlas = sAtlasCache.get(key);
+            if (atlas == null) {
+                if (CustomAppWidgetProvider.LOGGING) {
+                    Log.i(TAG, "create atlas " + key);
+                }
+                atlas = new GlyphAtlas(typeface, textSizePixels, textColor, shadow, letterSpacing,
+                        locale);
+                sAtlasCache.put(key, atlas);
+            }
+            return atlas;
+        }
+    }
+
+    private GlyphAtlas(Typeface typeface, float textSizePixels, int textColor, boolean shadow,
+                       float letterSpacing, Locale locale) {
+        final TextPaint textPaint = createPaint(typeface, textSizePixels, textColor, shadow,
+                letterSpacing);
+        final TextPaint smallTextPaint = createPaint(typeface, textSizePixels / 3, textColor,
+                shadow, letterSpacing);
+
+        // same vertical metrics as WidgetUtils.createTimeBitmap
+        mHeight = (int) textSizePixels;
+        int textHeight = (int) (textPaint.descent() - textPaint.ascent());
+        int textOffset = (int) ((textHeight / 2) - textPaint.descent());
+        int baseline = mHeight / 2 + textOffset;
+
+        // room for glyph overhang and the shadow around each cell
+        mPadding = (int) Math.ceil(textSizePixels / 16 + (shadow ? SHADOW_RADIUS : 0));
+
+        String[] amPmStrings = DateFormatSymbols.getInstance(locale).getAmPmStrings();
+        mAmString = amPmStrings[0];
+        mPmString = amPmStrings[1];
+
+        if (hasKerning(textPaint)) {
+            if (CustomAppWidgetProvider.LOGGING) {
+                Log.i(TAG, "font has kerning - no atlas");
+            }
+            mAtlas = null;
+            mAmCell = null;
+            mPmCell = null;
+            return;
+        }
+
+        int atlasWidth = 0;
+        for (int i = 0; i < ATLAS_GLYPHS.length(); i++) {
+            atlasWidth += getCellWidth(textPaint.measureText(ATLAS_GLYPHS, i, i + 1));
+        }
+        atlasWidth += getCellWidth(smallTextPaint.measureText(mAmString));
+        atlasWidth += getCellWidth(smallTextPaint.measureText(mPmString));
+
+        mAtlas = Bitmap.createBitmap(atlasWidth, Math.max(mHeight, 1), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(mAtlas);
+        int left = 0;
+        for (int i = 0; i < ATLAS_GLYPHS.length(); i++) {
+            String glyph = ATLAS_GLYPHS.substring(i, i + 1);
+            Cell cell = drawCell(canvas, glyph, left, baseline, textPaint);
+            mGlyphs.put(glyph.charAt(0), cell);
+            left = cell.bounds.right;
+        }
+        mAmCell = drawCell(canvas, mAmString, left, baseline, smallTextPaint);
+        mPmCell = drawCell(canvas, mPmString, mAmCell.bounds.right, baseline, smallTextPaint);
+    }
+
+    /**
+     * Put together the bitmap for the given time string out of atlas cells.
+     *
+     * @return the bitmap or null if the string contains glyphs not in the atlas
+     * or the font has no atlas
+     */
+    synchronized Bitmap compose(String time, String amPm) {
+        if (mAtlas == null) {
+            return null;
+        }
+        float totalWidth = 0;
+        for (int i = 0; i < time.length(); i++) {
+            Cell cell = mGlyphs.get(time.charAt(i));
+            if (cell == null) {
+                return null;
+            }
+            totalWidth += cell.advance;
+        }
+        Cell amPmCell = null;
+        if (!TextUtils.isEmpty(amPm)) {
+            if (amPm.equals(mAmString)) {
+                amPmCell = mAmCell;
+            } else if (amPm.equals(mPmString)) {
+                amPmCell = mPmCell;
+            } else {
+                return null;
+            }
+            totalWidth += amPmCell.advance;
+        }
+        if ((int) totalWidth <= 0 || mHeight <= 0) {
+            return null;
+        }
+
+        Bitmap myBitmap = BitmapPool.obtain((int) totalWidth, mHeight);
+        Canvas myCanvas = new Canvas(myBitmap);
+        float x = 0;
+        for (int i = 0; i < time.length(); i++) {
+            Cell cell = mGlyphs.get(time.charAt(i));
+            drawGlyph(myCanvas, cell, x);
+            x += cell.advance;
+        }
+        if (amPmCell != null) {
+            drawGlyph(myCanvas, amPmCell, x);
+        }
+        return myBitmap;
+    }
+
+    private void drawGlyph(Canvas canvas, Cell cell, float x) {
+        int left = Math.round(x) - mPadding;
+        mDstRect.set(left, 0, left + cell.bounds.width(), mHeight);
+        canvas.drawBitmap(mAtlas, cell.bounds, mDstRect, null);
+    }
+
+    private Cell drawCell(Canvas canvas, String text, int left, int baseline, TextPaint paint) {
+        float advance = paint.measureText(text);
+        Rect bounds = new Rect(left, 0, left + getCellWidth(advance), mHeight);
+        canvas.drawText(text, left + mPadding, baseline, paint);
+        return new Cell(bounds, advance);
+    }
+
+    /**
+     * Cells are placed by the advance of the single glyph so the atlas only
+     * matches the full rendering if no pair of atlas glyphs is kerned.
+     */
+    private static boolean hasKerning(TextPaint paint) {
+        final int count = ATLAS_GLYPHS.length();
+        final float[] advances = new float[count];
+        for (int i = 0; i < count; i++) {
+            advances[i] = paint.measureText(ATLAS_GLYPHS, i, i + 1);
+        }
+        final char[] pair = new char[2];
+        for (int i = 0; i < count; i++) {
+            pair[0] = ATLAS_GLYPHS.charAt(i);
+            for (int j = 0; j < count; j++) {
+                pair[1] = ATLAS_GLYPHS.charAt(j);
+                if (Math.abs(paint.measureText(pair, 0, 2) - advances[i] - advances[j])
+                        > KERNING_TOLERANCE) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private int getCellWidth(float advance) {
+        return (int) Math.ceil(advance) + 2 * mPadding;
+    }
+
+    private static TextPaint createPaint(Typeface typeface, float textSizePixels, int textColor,
+                                         boolean shadow, float letterSpacing) {
+        final TextPaint textPaint = new TextPaint();
+        textPaint.setTypeface(typeface);
+        textPaint.setTextSize(textSizePixels);
+        textPaint.setAntiAlias(true);
+        textPaint.setSubpixelText(true);
+        textPaint.setColor(textColor);
+        textPaint.setTextAlign(Paint.Align.LEFT);
+        if (shadow) {
+            textPaint.setShadowLayer(SHADOW_RADIUS, 0.0f, 0.0f, Color.BLACK);
+        }
+        if (letterSpacing != -1) {
+            textPaint.setLetterSpacing(letterSpacing);
+        }
+        return textPaint;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.omnirom.omniextras.alarmclock;
+
+import android.appwidget.AppWidgetManager;
+import android.graphics.Bitmap;
+import android.widget.RemoteViews;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rendered RemoteViews that are pushed to the {@link AppWidgetManager} together
+ * once all widgets have been rendered.
+ */
+class WidgetUpdateBatch {
+    private static class Update {
+        final int appWidgetId;
+        final RemoteViews views;
+        final boolean partial;
+
+        Update(int appWidgetId, RemoteViews views, boolean partial) {
+            this.appWidgetId = appWidgetId;
+            this.views = views;
+            this.partial = partial;
+        }
+    }
+
+    private final List<Update> mUpdates = new ArrayList<Update>();
+    private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+
+    void add(int appWidgetId, RemoteViews views, boolean partial) {
+        mUpdates.add(new Update(appWidgetId, views, partial));
+    }
+
+    /**
+     * Add a pooled bitmap used by one of the RemoteViews. It is returned to
+     * the {@link BitmapPool} once the batch has been pushed.
+     */
+    void addBitmap(Bitmap bitmap) {
+        mBitmaps.add(bitmap);
+    }
+
+    void push(AppWidgetManager appWidgetManager) {
+        for (Update update : mUpdates) {
+            if (update.partial) {
+                appWidgetManager.partiallyUpdateAppWidget(update.appWidgetId, update.views);
+            } else {
+                appWidgetManager.updateAppWidget(update.appWidgetId, update.views);
+            }
+        }
+        mUpdates.clear();
+        // RemoteViews have been parceled so the bitmaps can be reused
+        BitmapPool.release(mBitmaps);
+    }
+}
@@ -21,7 +21,6 @@ import android.appwidget.AppWidgetManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -30,14 +29,12 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
 import android.provider.CalendarContract;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -48,6 +45,7 @@ import android.text.style.AbsoluteSizeSpan;
 import android.widget.RemoteViews;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.TypefaceCache;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -106,21 +104,6 @@ public class WidgetUtils {
         }
     }
 
-    public static boolean isShowingAlarm(Context context, int id, boolean defaultValue) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getBoolean(CustomAppWidgetConfigure.KEY_SHOW_ALARM + "_" + id, defaultValue);
-    }
-
-    public static boolean isShowingDate(Context context, int id, boolean defaultValue) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getBoolean(CustomAppWidgetConfigure.KEY_SHOW_DATE + "_" + id, defaultValue);
-    }
-
-    public static boolean isClockShadow(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getBoolean(CustomAppWidgetConfigure.KEY_CLOCK_SHADOW + "_" + id, true);
-    }
-
     public static Bitmap createTextBitmap(final String text, final Typeface typeface, final float textSizePixels, final int textColor, boolean shadow, float letterSpacing) {
         final TextPaint textPaint = new TextPaint();
         textPaint.setTypeface(typeface);
@@ -143,7 +126,11 @@ public class WidgetUtils {
         return myBitmap;
     }
 
-    public static Bitmap createTimeBitmap(String timeFormat, final Typeface typeface, final float textSizePixels, final int textColor,
+    /***
+     * @param fontKey - stable identifier of the typeface used to look up its {@link GlyphAtlas}
+     */
+    public static Bitmap createTimeBitmap(String timeFormat, final String fontKey, final Typeface typeface,
+                                          final float textSizePixels, final int textColor,
                                           boolean shadow, float letterSpacing, boolean showAmPm) {
         if (showAmPm) {
             // remove any a
@@ -157,6 +144,15 @@ public class WidgetUtils {
             SimpleDateFormat amPmFormat = new SimpleDateFormat("a", Locale.getDefault());
             amPmString = amPmFormat.format(new Date());
         }
+
+        // blit the cached glyphs if possible
+        GlyphAtlas atlas = GlyphAtlas.get(fontKey, typeface, textSizePixels, textColor, shadow,
+                letterSpacing);
+        Bitmap atlasBitmap = atlas.compose(currTime, amPmString);
+        if (atlasBitmap != null) {
+            return atlasBitmap;
+        }
+
         final TextPaint textPaint = new TextPaint();
         textPaint.setTypeface(typeface);
         textPaint.setTextSize(textSizePixels);
@@ -192,7 +188,7 @@ public class WidgetUtils {
         float amPmStringSize = smallTextPaint.measureText(amPmString);
         int totalWidth = (int) (timeStringSizeTotal + amPmStringSize);
         int startOffset = (int) (timeStringSizeTotal - timeStringSize);
-        Bitmap myBitmap = Bitmap.createBitmap(totalWidth, (int) textSizePixels, Bitmap.Config.ARGB_8888);
+        Bitmap myBitmap = BitmapPool.obtain(totalWidth, (int) textSizePixels);
         Canvas myCanvas = new Canvas(myBitmap);
         myCanvas.drawText(currTime, startOffset, myBitmap.getHeight() / 2 + textOffset, textPaint);
 
@@ -202,110 +198,44 @@ public class WidgetUtils {
         return myBitmap;
     }
 
-    public static Typeface getClockFont(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String font = prefs.getString(CustomAppWidgetConfigure.KEY_CLOCK_FONT + "_" + id, null);
+    /**
+     * @return the current time formatted the same way as in {@link #createTimeBitmap}
+     */
+    public static String getTimeString(String timeFormat) {
+        SimpleDateFormat sdf = new SimpleDateFormat(timeFormat, Locale.getDefault());
+        return sdf.format(new Date());
+    }
+
+    /**
+     * @param fontPath - path of the custom clock font or null for the default font
+     */
+    public static Typeface getClockFont(String fontPath) {
+        Typeface font = TypefaceCache.get(fontPath);
         if (font != null) {
-            try {
-                return Typeface.createFromFile(font);
-            } catch (Exception e) {
-            }
+            return font;
         }
         return Typeface.create("sans-serif-light", Typeface.NORMAL);
     }
 
-    public static int getClockColor(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        return prefs.getInt(CustomAppWidgetConfigure.KEY_CLOCK_COLOR + "_" + id, Color.WHITE);
-    }
-
     public static Bitmap createAnalogClockBitmap(Context context, boolean showAlarm, boolean showDate) {
-        Resources r = context.getResources();
-
         Calendar calendar = new GregorianCalendar();
         float hours = calendar.get(Calendar.HOUR_OF_DAY);
         float minutes = calendar.get(Calendar.MINUTE);
         hours = hours + minutes / 60.0f;
 
-        Paint circlePaint = new Paint();
-        circlePaint.setAntiAlias(true);
-        circlePaint.setStyle(Paint.Style.STROKE);
-        circlePaint.setColor(r.getColor(R.color.colorPrimary));
-
-        Paint remaingCirclePaint = new Paint();
-        remaingCirclePaint.setAntiAlias(true);
-        remaingCirclePaint.setStyle(Paint.Style.STROKE);
-        remaingCirclePaint.setColor(r.getColor(R.color.colorAccent));
-
-        Paint bgPaint = new Paint();
-        bgPaint.setAntiAlias(true);
-        bgPaint.setStyle(Paint.Style.FILL);
-        bgPaint.setColor(r.getColor(R.color.analog_clock_bg_color));
-
-        Paint hourPaint = new Paint();
-        hourPaint.setAntiAlias(true);
-        hourPaint.setStyle(Paint.Style.STROKE);
-        hourPaint.setColor(r.getColor(R.color.analog_clock_hour_hand_color));
-
-        Paint minutePaint = new Paint();
-        minutePaint.setAntiAlias(true);
-        minutePaint.setStyle(Paint.Style.STROKE);
-        minutePaint.setColor(r.getColor(R.color.analog_clock_minute_hand_color));
-
-        Paint centerDotPaint = new Paint();
-        centerDotPaint.setAntiAlias(true);
-        centerDotPaint.setStyle(Paint.Style.FILL);
-        centerDotPaint.setColor(r.getColor(R.color.colorAccent));
-
-        Paint alarmPaint = new Paint();
-        alarmPaint.setAntiAlias(true);
-        alarmPaint.setStyle(Paint.Style.STROKE);
-        alarmPaint.setColor(r.getColor(R.color.analog_clock_alarm_color));
-
-        float textSizePixels = r.getDimension(R.dimen.analog_widget_font_size);
-        Typeface typeface = Typeface.create("sans-serif-light", Typeface.NORMAL);
-
-        final TextPaint textPaint = new TextPaint();
-        textPaint.setTypeface(typeface);
-        textPaint.setTextSize(textSizePixels);
-        textPaint.setAntiAlias(true);
-        textPaint.setSubpixelText(true);
-        textPaint.setColor(r.getColor(android.R.color.white));
-        textPaint.setTextAlign(Paint.Align.CENTER);
-
-        final int circleStrokeWidth = r.getDimensionPixelSize(R.dimen.widget_clock_circle_size);
-        final int handEndLength = r.getDimensionPixelSize(R.dimen.widget_clock_hand_end_length);
-        final int width = r.getDimensionPixelSize(R.dimen.custom_analog_widget_size);
-
-        circlePaint.setStrokeWidth(circleStrokeWidth);
-        remaingCirclePaint.setStrokeWidth(circleStrokeWidth);
-        hourPaint.setStrokeWidth(r.getDimensionPixelSize(R.dimen.widget_clock_hour_hand_width));
-        minutePaint.setStrokeWidth(r.getDimensionPixelSize(R.dimen.widget_clock_minute_hand_width));
-        alarmPaint.setStrokeWidth(circleStrokeWidth);
-
-        Bitmap myBitmap = Bitmap.createBitmap(width, width, Bitmap.Config.ARGB_8888);
+        // background and ring are only rendered once
+        AnalogClockFace face = AnalogClockFace.get(context);
+        Bitmap myBitmap = BitmapPool.obtain(face.width, face.width);
         Canvas canvas = new Canvas(myBitmap);
+        canvas.drawBitmap(face.staticLayer, 0, 0, null);
 
-        int availableWidth = width;
-        int availableHeight = width;
-
-        int x = availableWidth / 2;
-        int y = availableHeight / 2;
-
-        float radius = availableHeight / 2 - circleStrokeWidth;
-        RectF arcRect = new RectF();
-        arcRect.top = y - radius;
-        arcRect.bottom = y + radius;
-        arcRect.left = x - radius;
-        arcRect.right = x + radius;
-        canvas.drawArc(arcRect, 0, 360, true, bgPaint);
-        canvas.drawArc(arcRect, 0, 360, false, circlePaint);
+        RectF arcRect = face.arcRect;
         float minuteStartAngle = minutes / 60.0f * 360.0f;
         if (minuteStartAngle < 90) {
-            canvas.drawArc(arcRect, 270f + minuteStartAngle, 90f - minuteStartAngle, false, remaingCirclePaint);
-            canvas.drawArc(arcRect, 0f, 270f, false, remaingCirclePaint);
+            canvas.drawArc(arcRect, 270f + minuteStartAngle, 90f - minuteStartAngle, false, face.remaingCirclePaint);
+            canvas.drawArc(arcRect, 0f, 270f, false, face.remaingCirclePaint);
         } else {
-            canvas.drawArc(arcRect, minuteStartAngle - 90f, 360f - minuteStartAngle, false, remaingCirclePaint);
+            canvas.drawArc(arcRect, minuteStartAngle - 90f, 360f - minuteStartAngle, false, face.remaingCirclePaint);
         }
 
         if (showDate) {
@@ -313,12 +243,7 @@ public class WidgetUtils {
                     context.getString(R.string.abbrev_wday_month_day_no_year));
             SimpleDateFormat sdf = new SimpleDateFormat(dateFormat.toString(), Locale.getDefault());
             String currDate = sdf.format(new Date()).toUpperCase();
-
-            Path path = new Path();
-            RectF arcRectText = new RectF(arcRect);
-            arcRectText.inset(2 * textSizePixels, 2 * textSizePixels);
-            path.addArc(arcRectText, 180f, 180f);
-            canvas.drawTextOnPath(currDate, path, 0, 0, textPaint);
+            canvas.drawTextOnPath(currDate, face.datePath, 0, 0, face.textPaint);
         }
         if (showAlarm) {
             long nextAlamMilis = getNextAlarmInMillis(context);
@@ -335,22 +260,19 @@ public class WidgetUtils {
                     hour = hour + minute / 60.0f;
                     float angle = hour / 12.0f * 360.0f - 90;
                     RectF arcRectInset = new RectF(arcRect);
-                    arcRectInset.inset(circleStrokeWidth, circleStrokeWidth);
-                    canvas.drawArc(arcRectInset, angle - 4, 4, false, alarmPaint);
+                    arcRectInset.inset(face.circleStrokeWidth, face.circleStrokeWidth);
+                    canvas.drawArc(arcRectInset, angle - 4, 4, false, face.alarmPaint);
                 }
 
                 String alarmTimeString = getFormattedTime(context, alarmTime).toUpperCase();
-
-                Path path = new Path();
-                RectF arcRectText = new RectF(arcRect);
-                arcRectText.inset(textSizePixels, textSizePixels);
-                path.addArc(arcRectText, 180f, -180f);
-                canvas.drawTextOnPath(alarmTimeString, path, 0, 0, textPaint);
+                canvas.drawTextOnPath(alarmTimeString, face.alarmPath, 0, 0, face.textPaint);
             }
         }
-        drawHand(canvas, hourPaint, x, y, radius * 0.70f, hours / 12.0f * 360.0f - 90, handEndLength);
-        drawHand(canvas, minutePaint, x, y, radius + circleStrokeWidth / 2, minutes / 60.0f * 360.0f - 90, handEndLength);
-        canvas.drawCircle(x, y, hourPaint.getStrokeWidth(), centerDotPaint);
+        drawHand(canvas, face.hourPaint, face.x, face.y, face.radius * 0.70f,
+                hours / 12.0f * 360.0f - 90, face.handEndLength);
+        drawHand(canvas, face.minutePaint, face.x, face.y, face.radius + face.circleStrokeWidth / 2,
+                minutes / 60.0f * 360.0f - 90, face.handEndLength);
+        canvas.drawCircle(face.x, face.y, face.hourPaint.getStrokeWidth(), face.centerDotPaint);
 
         return myBitmap;
     }
@@ -390,8 +312,18 @@ public class WidgetUtils {
                                                final float textSizePixels, final int textColor,
                                                boolean shadow, float letterSpacing, boolean showDate,
                                                boolean showAlarm) {
+        return createDataAlarmBitmap(context, getNextAlarm(context), typeface, textSizePixels,
+                textColor, shadow, letterSpacing, showDate, showAlarm);
+    }
 
-        String nextAlarm = getNextAlarm(context);
+    /***
+     * @param nextAlarm - formatted next alarm as returned by {@link #getNextAlarm(Context)}
+     */
+    public static Bitmap createDataAlarmBitmap(final Context context, String nextAlarm,
+                                               final Typeface typeface,
+                                               final float textSizePixels, final int textColor,
+                                               boolean shadow, float letterSpacing, boolean showDate,
+                                               boolean showAlarm) {
         boolean hasAlarm = !TextUtils.isEmpty(nextAlarm);
         if (hasAlarm) {
             nextAlarm = nextAlarm.toUpperCase();
@@ -424,7 +356,7 @@ public class WidgetUtils {
         float totalHeight = Math.max(b.getHeight(), textSizePixels);
 
         if (totalWidth != 0 && totalHeight != 0) {
-            Bitmap myBitmap = Bitmap.createBitmap((int) totalWidth, (int) totalHeight, Bitmap.Config.ARGB_8888);
+            Bitmap myBitmap = BitmapPool.obtain((int) totalWidth, (int) totalHeight);
             Canvas myCanvas = new Canvas(myBitmap);
             if (showDate) {
                 drawTextOnCanvas(myCanvas, dateWidth / 2, myBitmap.getHeight() / 2, currDate, typeface, textSizePixels, textColor, shadow, letterSpacing);
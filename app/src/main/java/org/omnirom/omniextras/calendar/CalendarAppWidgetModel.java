@@ -18,6 +18,7 @@ package org.omnirom.omniextras.calendar;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.provider.CalendarContract.Instances;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.text.format.DateUtils;
@@ -28,8 +29,11 @@ import android.view.View;
 import org.omnirom.omniextras.R;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
 
 class CalendarAppWidgetModel {
@@ -86,6 +90,7 @@ class CalendarAppWidgetModel {
         boolean allDay;
         int color;
         int day;
+        int endDay;
 
         public EventInfo() {
             visibWhen = View.GONE;
@@ -243,6 +248,28 @@ class CalendarAppWidgetModel {
 
     }
 
+    /**
+     * Same order as the instances query.
+     */
+    private static final Comparator<EventInfo> EVENT_ORDER = new Comparator<EventInfo>() {
+        @Override
+        public int compare(EventInfo lhs, EventInfo rhs) {
+            if (lhs.day != rhs.day) {
+                return lhs.day < rhs.day ? -1 : 1;
+            }
+            if (lhs.start != rhs.start) {
+                return lhs.start < rhs.start ? -1 : 1;
+            }
+            if (lhs.endDay != rhs.endDay) {
+                return lhs.endDay < rhs.endDay ? -1 : 1;
+            }
+            if (lhs.end != rhs.end) {
+                return lhs.end < rhs.end ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
     final List<RowInfo> mRowInfos;
     final List<EventInfo> mEventInfos;
     final List<DayInfo> mDayInfos;
@@ -250,10 +277,15 @@ class CalendarAppWidgetModel {
     final long mNow;
     final int mTodayJulianDay;
     final int mMaxJulianDay;
+    // number of days the query covered
+    final int mDays;
     final String mTimeZone;
+    // number of instances the query returned
+    int mQueryCount;
 
-    public CalendarAppWidgetModel(Context context, String timeZone) {
+    public CalendarAppWidgetModel(Context context, String timeZone, int days) {
         mContext = context;
+        mDays = days;
         mTimeZone = timeZone;
         mNow = System.currentTimeMillis();
         Time time = new Time(timeZone);
@@ -266,41 +298,104 @@ class CalendarAppWidgetModel {
     }
 
     private int getWidgetDays() {
-        return 14; //Utils.getWidgetDays(mContext);
+        return mDays;
     }
 
     public void buildFromCursor(Cursor cursor, String timeZone) {
         final Time recycle = new Time(timeZone);
-        final ArrayList<LinkedList<RowInfo>> mBuckets =
-                new ArrayList<LinkedList<RowInfo>>(getWidgetDays());
-        for (int i = 0; i < getWidgetDays(); i++) {
-            mBuckets.add(new LinkedList<RowInfo>());
+        initTimeZone(recycle, timeZone);
+        mQueryCount = cursor.getCount();
+        readEvents(cursor, recycle);
+        buildRows(recycle);
+    }
+
+    /**
+     * Build the model from the events of a previous model of the same day
+     * without querying them again.
+     *
+     * @param changedEventIds the events of previous that are dropped
+     * @param cursor the current instances of the changed events
+     */
+    public void buildFromModel(CalendarAppWidgetModel previous, Set<Long> changedEventIds,
+            Cursor cursor, String timeZone) {
+        final Time recycle = new Time(timeZone);
+        initTimeZone(recycle, timeZone);
+        mQueryCount = previous.mQueryCount;
+        for (EventInfo eventInfo : previous.mEventInfos) {
+            if (!changedEventIds.contains(eventInfo.id) && eventInfo.end >= mNow) {
+                mEventInfos.add(eventInfo);
+            }
         }
+        readEvents(cursor, recycle);
+        // back to the order of the query
+        Collections.sort(mEventInfos, EVENT_ORDER);
+        buildRows(recycle);
+    }
+
+    /**
+     * @return true if other shows exactly the same rows
+     */
+    boolean hasSameRows(CalendarAppWidgetModel other) {
+        if (other == null || mTodayJulianDay != other.mTodayJulianDay
+                || mRowInfos.size() != other.mRowInfos.size()) {
+            return false;
+        }
+        for (int i = 0; i < mRowInfos.size(); i++) {
+            RowInfo row = mRowInfos.get(i);
+            RowInfo otherRow = other.mRowInfos.get(i);
+            if (row.mType != otherRow.mType) {
+                return false;
+            }
+            if (row.mType == RowInfo.TYPE_DAY) {
+                if (!mDayInfos.get(row.mIndex).equals(other.mDayInfos.get(otherRow.mIndex))) {
+                    return false;
+                }
+            } else if (!mEventInfos.get(row.mIndex).equals(other.mEventInfos.get(otherRow.mIndex))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void initTimeZone(Time recycle, String timeZone) {
         recycle.setToNow();
         mShowTZ = !TextUtils.equals(timeZone, Time.getCurrentTimezone());
         if (mShowTZ) {
             mHomeTZName = TimeZone.getTimeZone(timeZone).getDisplayName(recycle.isDst != 0,
                     TimeZone.SHORT);
         }
+    }
+
+    private void readEvents(Cursor cursor, Time recycle) {
+        // the rows are read straight from the provider cursor - resolve the
+        // columns only once
+        final int eventIdIndex = cursor.getColumnIndexOrThrow(Instances.EVENT_ID);
+        final int allDayIndex = cursor.getColumnIndexOrThrow(Instances.ALL_DAY);
+        final int beginIndex = cursor.getColumnIndexOrThrow(Instances.BEGIN);
+        final int endIndex = cursor.getColumnIndexOrThrow(Instances.END);
+        final int titleIndex = cursor.getColumnIndexOrThrow(Instances.TITLE);
+        final int locationIndex = cursor.getColumnIndexOrThrow(Instances.EVENT_LOCATION);
+        final int startDayIndex = cursor.getColumnIndexOrThrow(Instances.START_DAY);
+        final int endDayIndex = cursor.getColumnIndexOrThrow(Instances.END_DAY);
+        final int colorIndex = cursor.getColumnIndexOrThrow(Instances.DISPLAY_COLOR);
+        final int selfStatusIndex = cursor.getColumnIndexOrThrow(Instances.SELF_ATTENDEE_STATUS);
 
         cursor.moveToPosition(-1);
         String tz = Utils.getTimeZone(mContext, null);
         while (cursor.moveToNext()) {
             final int rowId = cursor.getPosition();
-            final long eventId = cursor.getLong(CalendarAppWidgetService.INDEX_EVENT_ID);
-            final boolean allDay = cursor.getInt(CalendarAppWidgetService.INDEX_ALL_DAY) != 0;
-            long start = cursor.getLong(CalendarAppWidgetService.INDEX_BEGIN);
-            long end = cursor.getLong(CalendarAppWidgetService.INDEX_END);
-            final String title = cursor.getString(CalendarAppWidgetService.INDEX_TITLE);
-            final String location =
-                    cursor.getString(CalendarAppWidgetService.INDEX_EVENT_LOCATION);
+            final long eventId = cursor.getLong(eventIdIndex);
+            final boolean allDay = cursor.getInt(allDayIndex) != 0;
+            long start = cursor.getLong(beginIndex);
+            long end = cursor.getLong(endIndex);
+            final String title = cursor.getString(titleIndex);
+            final String location = cursor.getString(locationIndex);
             // we don't compute these ourselves because it seems to produce the
             // wrong endDay for all day events
-            final int startDay = cursor.getInt(CalendarAppWidgetService.INDEX_START_DAY);
-            final int endDay = cursor.getInt(CalendarAppWidgetService.INDEX_END_DAY);
-            final int color = cursor.getInt(CalendarAppWidgetService.INDEX_COLOR);
-            final int selfStatus = cursor
-                    .getInt(CalendarAppWidgetService.INDEX_SELF_ATTENDEE_STATUS);
+            final int startDay = cursor.getInt(startDayIndex);
+            final int endDay = cursor.getInt(endDayIndex);
+            final int color = cursor.getInt(colorIndex);
+            final int selfStatus = cursor.getInt(selfStatusIndex);
 
             // Adjust all-day times into local timezone
             if (allDay) {
@@ -319,16 +414,26 @@ class CalendarAppWidgetModel {
                 continue;
             }
 
-            int i = mEventInfos.size();
             mEventInfos.add(populateEventInfo(eventId, allDay, start, end, startDay, endDay, title,
                     location, color, selfStatus));
+        }
+    }
+
+    private void buildRows(Time recycle) {
+        final ArrayList<LinkedList<RowInfo>> mBuckets =
+                new ArrayList<LinkedList<RowInfo>>(getWidgetDays());
+        for (int i = 0; i < getWidgetDays(); i++) {
+            mBuckets.add(new LinkedList<RowInfo>());
+        }
+        for (int i = 0; i < mEventInfos.size(); i++) {
+            final EventInfo eventInfo = mEventInfos.get(i);
             // populate the day buckets that this event falls into
-            int from = Math.max(startDay, mTodayJulianDay);
-            int to = Math.min(endDay, mMaxJulianDay);
+            int from = Math.max(eventInfo.day, mTodayJulianDay);
+            int to = Math.min(eventInfo.endDay, mMaxJulianDay);
             for (int day = from; day <= to; day++) {
                 LinkedList<RowInfo> bucket = mBuckets.get(day - mTodayJulianDay);
                 RowInfo rowInfo = new RowInfo(RowInfo.TYPE_MEETING, i);
-                if (allDay) {
+                if (eventInfo.allDay) {
                     bucket.addFirst(rowInfo);
                 } else {
                     bucket.add(rowInfo);
@@ -395,6 +500,7 @@ class CalendarAppWidgetModel {
         eventInfo.color = color;
         eventInfo.selfAttendeeStatus = selfStatus;
         eventInfo.day = startDay;
+        eventInfo.endDay = endDay;
 
         // What
         if (TextUtils.isEmpty(title)) {
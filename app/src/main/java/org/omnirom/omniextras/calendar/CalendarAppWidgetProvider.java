@@ -17,6 +17,8 @@
 package org.omnirom.omniextras.calendar;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
+import org.omnirom.omniextras.preference.WidgetConfigStore;
 
 import static android.provider.CalendarContract.EXTRA_EVENT_ALL_DAY;
 import static android.provider.CalendarContract.EXTRA_EVENT_BEGIN_TIME;
@@ -30,6 +32,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.Bundle;
 import android.provider.CalendarContract;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -45,6 +48,10 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
     static final String TAG = "CalendarAppWidgetProvider";
     static final boolean LOGD = true;
 
+    private static final String[] WIDGET_KEYS = {
+            WidgetConfig.KEY_LOOK_AHEAD_DAYS, WidgetConfig.KEY_HIDE_DECLINED
+    };
+
     /**
      * {@inheritDoc}
      */
@@ -83,6 +90,34 @@ public class CalendarAppWidgetProvider extends AppWidgetProvider {
         am.cancel(pendingUpdate);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        CalendarModelLoader.remove(appWidgetIds);
+        WidgetConfigStore.clear(context, WIDGET_KEYS, appWidgetIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onRestored(Context context, int[] oldWidgetIds, int[] newWidgetIds) {
+        WidgetConfigStore.remap(context, WIDGET_KEYS, oldWidgetIds, newWidgetIds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
+                                          int appWidgetId, Bundle newOptions) {
+        // the number of rows that fit changed - no event changed so this only
+        // loads if the widget now needs another model
+        CalendarModelLoader.load(context, appWidgetId, new long[0], false, null);
+    }
+
     /**
      * {@inheritDoc}
      */
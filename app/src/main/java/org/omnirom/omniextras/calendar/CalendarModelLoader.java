@@ -0,0 +1,779 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.calendar;
+
+import android.Manifest;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.Bundle;
+import android.provider.CalendarContract.Events;
+import android.provider.CalendarContract.Instances;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads the calendar instances and builds the {@link CalendarAppWidgetModel}
+ * on a background thread. Loads run one after the other and a load is dropped
+ * if a newer one has been requested in the meantime - the newer one takes over
+ * what the dropped one had to do. The model is replaced as a whole once it is
+ * complete.
+ *
+ * If only some events changed just their instances are queried and merged
+ * into the current model. After a calendar change the events table is
+ * compared with the state of the events the model was built from to find
+ * the changed ones - that is much cheaper than querying the instances.
+ *
+ * There is one model per {@link Query} - widgets with the same query
+ * parameters share it. A widget is only notified if the rows of its own
+ * model changed or if it explicitly asked for it.
+ *
+ * A full load starts with a window of days sized to the rows the widget can
+ * show and widens it up to the look-ahead of the widget as long as there
+ * are too few rows.
+ */
+class CalendarModelLoader {
+    private static final String TAG = "CalendarWidget";
+    private static final boolean LOGD = false;
+
+    /**
+     * Update interval used when no next-update calculated, or bad trigger time in past.
+     * Unit: milliseconds.
+     */
+    private static final long UPDATE_TIME_NO_EVENTS = DateUtils.HOUR_IN_MILLIS * 6;
+
+    // guess for the first window - a day header and one event per day
+    private static final int ROWS_PER_DAY = 2;
+
+    // more changed events than that are loaded with a full query - each one
+    // is part of the IN list of the instances query and the merge
+    // replaces the rows of each event in the model, so beyond a sync of a few
+    // events the full load costs about the same
+    private static final int MAX_MERGED_EVENTS = 20;
+
+    private static final String[] EVENT_STATE_PROJECTION = new String[] {
+            Events._ID,
+            Events.ORIGINAL_ID,
+            Events.DTSTART,
+            Events.DTEND,
+            Events.DURATION,
+            Events.ALL_DAY,
+            Events.EVENT_TIMEZONE,
+            Events.RRULE,
+            Events.RDATE,
+            Events.EXRULE,
+            Events.EXDATE,
+            Events.ORIGINAL_INSTANCE_TIME,
+            Events.TITLE,
+            Events.EVENT_LOCATION,
+            Events.DISPLAY_COLOR,
+            Events.SELF_ATTENDEE_STATUS,
+            Events.STATUS
+    };
+    private static final int INDEX_STATE_ID = 0;
+    private static final int INDEX_STATE_ORIGINAL_ID = 1;
+
+    // events that may have instances in the window - the end is unknown
+    // for recurring events so those are matched by their last date
+    private static final String EVENT_STATE_SELECTION = Events.VISIBLE + "=1 AND "
+            + Events.DELETED + "=0 AND " + Events.DTSTART + "<=? AND ("
+            + Events.LAST_DATE + " IS NULL OR " + Events.LAST_DATE + ">=?)";
+
+    // Must be single threaded or else the loads may be run out of order.
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    // all guarded by sEntries
+    private static final Map<Query, Entry> sEntries = new HashMap<Query, Entry>();
+    private static final SparseArray<Query> sWidgetQueries = new SparseArray<Query>();
+
+    // Suppress unnecessary logging about update time.
+    private static long sLastUpdateTime = UPDATE_TIME_NO_EVENTS;
+
+    /**
+     * Parameters of the instances query. Widgets with equal parameters share
+     * one model.
+     */
+    static final class Query {
+        // look-ahead - the window is never widened beyond
+        final int maxDays;
+        final boolean hideDeclined;
+        // rows that fit in the widget
+        final int rows;
+
+        Query(int maxDays, boolean hideDeclined, int rows) {
+            this.maxDays = maxDays;
+            this.hideDeclined = hideDeclined;
+            this.rows = rows;
+        }
+
+        int getInitialDays() {
+            return Math.max(1, Math.min(maxDays, (rows + ROWS_PER_DAY - 1) / ROWS_PER_DAY));
+        }
+
+        /**
+         * @return the max number of instances to query
+         */
+        int getLimit() {
+            return Math.min(CalendarAppWidgetService.EVENT_MAX_COUNT,
+                    Math.max(CalendarAppWidgetService.EVENT_MIN_COUNT, rows * ROWS_PER_DAY));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            Query other = (Query) o;
+            return maxDays == other.maxDays && hideDeclined == other.hideDeclined
+                    && rows == other.rows;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = maxDays;
+            result = 31 * result + (hideDeclined ? 1 : 0);
+            result = 31 * result + rows;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "[maxDays=" + maxDays + ", hideDeclined=" + hideDeclined + ", rows=" + rows + "]";
+        }
+    }
+
+    /**
+     * The model of a query and the requests for it not yet handled.
+     */
+    private static final class Entry {
+        final Query query;
+        volatile CalendarAppWidgetModel model;
+
+        // all guarded by sEntries
+        int version;
+        // widgets to notify with the next published model even if no visible
+        // row changed e.g. the time changed
+        final Set<Integer> notifyIds = new HashSet<Integer>();
+        boolean fullLoad;
+        // find the changed events by their state
+        boolean detectChanges;
+        final Set<Long> changedEventIds = new HashSet<Long>();
+
+        // state of the events the model was built from or null if unknown
+        // only used on the loader thread
+        Map<Long, EventState> eventStates;
+
+        Entry(Query query) {
+            this.query = query;
+        }
+    }
+
+    /**
+     * The columns of an event that affect its instances or their rows.
+     */
+    private static final class EventState {
+        final long originalId;
+        final int hash;
+
+        EventState(long originalId, int hash) {
+            this.originalId = originalId;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * @return the last published model of the widget or null if there is none yet
+     */
+    static CalendarAppWidgetModel getModel(int appWidgetId) {
+        synchronized (sEntries) {
+            Query query = sWidgetQueries.get(appWidgetId);
+            Entry entry = query != null ? sEntries.get(query) : null;
+            return entry != null ? entry.model : null;
+        }
+    }
+
+    /**
+     * Forget the deleted widgets and the models no other widget uses.
+     */
+    static void remove(int[] appWidgetIds) {
+        synchronized (sEntries) {
+            for (int appWidgetId : appWidgetIds) {
+                Query query = sWidgetQueries.get(appWidgetId);
+                sWidgetQueries.delete(appWidgetId);
+                if (query != null) {
+                    removeUnusedLocked(query);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param appWidgetId - widget to notify or INVALID_APPWIDGET_ID for all
+     * @param result - finished after the load or null
+     */
+    static void load(Context context, int appWidgetId, final BroadcastReceiver.PendingResult result) {
+        load(context, appWidgetId, null, true, result);
+    }
+
+    /**
+     * @param appWidgetId - widget to load or INVALID_APPWIDGET_ID for all
+     * @param changedEventIds - the events that changed or null if unknown
+     * @param forceNotify - false to notify the widgets only if a visible row
+     *                      of their model changed
+     * @param result - finished after the load or null
+     */
+    static void load(Context context, int appWidgetId, long[] changedEventIds,
+                     boolean forceNotify, final BroadcastReceiver.PendingResult result) {
+        enqueue(context, appWidgetId, changedEventIds, false, forceNotify, result);
+    }
+
+    /**
+     * Events changed - find them and merge only their instances into the
+     * models. Only notifies the widgets if a visible row changed.
+     *
+     * @param result - finished after the load or null
+     */
+    static void loadChanges(Context context, final BroadcastReceiver.PendingResult result) {
+        enqueue(context, AppWidgetManager.INVALID_APPWIDGET_ID, new long[0], true, false, result);
+    }
+
+    private static void enqueue(Context context, int appWidgetId, long[] changedEventIds,
+                                boolean detectChanges, boolean forceNotify,
+                                final BroadcastReceiver.PendingResult result) {
+        final Context appContext = context.getApplicationContext();
+        final int[] appWidgetIds;
+        if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+            appWidgetIds = AppWidgetManager.getInstance(appContext).getAppWidgetIds(
+                    CalendarAppWidgetProvider.getComponentName(appContext));
+        } else {
+            appWidgetIds = new int[] { appWidgetId };
+        }
+        final List<Entry> entries = new ArrayList<Entry>();
+        final List<Integer> versions = new ArrayList<Integer>();
+        synchronized (sEntries) {
+            for (int id : appWidgetIds) {
+                Entry entry = getEntryLocked(id, getQuery(appContext, id));
+                if (forceNotify) {
+                    entry.notifyIds.add(id);
+                }
+                if (!entries.contains(entry)) {
+                    entries.add(entry);
+                }
+            }
+            for (Entry entry : entries) {
+                entry.detectChanges |= detectChanges;
+                if (changedEventIds == null) {
+                    entry.fullLoad = true;
+                } else {
+                    for (long eventId : changedEventIds) {
+                        entry.changedEventIds.add(eventId);
+                    }
+                }
+                versions.add(++entry.version);
+            }
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            final int version = versions.get(i);
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // If there is a newer load request in the queue, skip loading.
+                    if (version == getVersion(entry)) {
+                        try {
+                            loadModel(appContext, entry, version);
+                        } catch (RuntimeException e) {
+                            // e.g. the permission was revoked - keep the
+                            // executor and the queued finish running
+                            Log.e(TAG, "load failed", e);
+                        }
+                    }
+                }
+            });
+        }
+        if (result != null) {
+            // runs after the loads queued above
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    result.finish();
+                }
+            });
+        }
+    }
+
+    private static int getVersion(Entry entry) {
+        synchronized (sEntries) {
+            return entry.version;
+        }
+    }
+
+    /**
+     * @return the query parameters of the widget
+     */
+    private static Query getQuery(Context context, int appWidgetId) {
+        WidgetConfig config = WidgetConfig.get(context, appWidgetId, WidgetConfig.TYPE_CALENDAR);
+        return new Query(config.lookAheadDays, config.hideDeclined,
+                getVisibleRows(context, appWidgetId));
+    }
+
+    /**
+     * @return the number of rows that fit in the current height of the widget
+     */
+    private static int getVisibleRows(Context context, int appWidgetId) {
+        final Resources res = context.getResources();
+        final float density = res.getDisplayMetrics().density;
+        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(appWidgetId);
+        int heightDp = options != null
+                ? options.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, 0) : 0;
+        if (heightDp <= 0) {
+            // not placed yet - assume the default size
+            heightDp = (int) (res.getDimension(R.dimen.calendar_widget_default_height) / density);
+        }
+        final float headerDp = res.getDimension(R.dimen.calendar_widget_header_height) / density;
+        final float rowDp = res.getDimension(R.dimen.calendar_widget_row_height) / density;
+        return Math.max(1, (int) Math.ceil((heightDp - headerDp) / rowDp));
+    }
+
+    /**
+     * Assigns the widget to the entry of the query - creates it if needed.
+     */
+    private static Entry getEntryLocked(int appWidgetId, Query query) {
+        Query previous = sWidgetQueries.get(appWidgetId);
+        sWidgetQueries.put(appWidgetId, query);
+        Entry entry = sEntries.get(query);
+        if (entry == null) {
+            if (LOGD) Log.d(TAG, "New model for " + query);
+            entry = new Entry(query);
+            sEntries.put(query, entry);
+        }
+        if (previous != null && !previous.equals(query)) {
+            // the widget still shows the rows of its old model
+            entry.notifyIds.add(appWidgetId);
+            removeUnusedLocked(previous);
+        }
+        return entry;
+    }
+
+    private static void removeUnusedLocked(Query query) {
+        for (int i = 0; i < sWidgetQueries.size(); i++) {
+            if (query.equals(sWidgetQueries.valueAt(i))) {
+                return;
+            }
+        }
+        if (LOGD) Log.d(TAG, "Remove model for " + query);
+        sEntries.remove(query);
+    }
+
+    private static void loadModel(final Context context, Entry entry, int version) {
+        if (!isPermissionEnabled(context)) {
+            Log.e(TAG, "load blocked because of missing permission");
+            return;
+        }
+        if (LOGD) Log.d(TAG, "Querying for widget events " + entry.query);
+
+        final long now = System.currentTimeMillis();
+        String tz = Utils.getTimeZone(context, new Runnable() {
+            @Override
+            public void run() {
+                load(context, AppWidgetManager.INVALID_APPWIDGET_ID, null);
+            }
+        });
+        final CalendarAppWidgetModel previous = entry.model;
+        final Set<Long> changedEventIds;
+        boolean fullLoad;
+        final boolean detectChanges;
+        synchronized (sEntries) {
+            changedEventIds = new HashSet<Long>(entry.changedEventIds);
+            fullLoad = entry.fullLoad || !canMerge(previous, entry.query, tz);
+            detectChanges = entry.detectChanges;
+        }
+        Map<Long, EventState> eventStates = null;
+        if (!fullLoad && detectChanges) {
+            eventStates = queryEventStates(context, entry.query.maxDays);
+            fullLoad = !findChangedEvents(entry.eventStates, eventStates, changedEventIds);
+        }
+        if (!fullLoad && changedEventIds.isEmpty()) {
+            // nothing changed
+            synchronized (sEntries) {
+                if (version == entry.version) {
+                    entry.detectChanges = false;
+                }
+            }
+            notifyWidgets(context, takeNotifyIds(entry, true));
+            return;
+        }
+        if (eventStates == null) {
+            // before the instances - a change in between is found with the
+            // next calendar change
+            eventStates = queryEventStates(context, entry.query.maxDays);
+        }
+
+        CalendarAppWidgetModel model = null;
+        if (!fullLoad) {
+            if (LOGD) Log.d(TAG, "Merge changed events " + changedEventIds);
+            String selection = "(" + queryForSelection(entry.query) + ") AND "
+                    + Instances.EVENT_ID + " IN (" + TextUtils.join(",", changedEventIds) + ")";
+            model = queryModel(context, entry.query, previous.mDays, selection,
+                    previous, changedEventIds, tz);
+            if (model == null) {
+                return;
+            }
+            if (!isComplete(model, entry.query)) {
+                // events are gone - the window may need to be widened
+                model = null;
+            }
+        }
+        if (model == null) {
+            int days = entry.query.getInitialDays();
+            while (true) {
+                model = queryModel(context, entry.query, days, queryForSelection(entry.query),
+                        null, null, tz);
+                if (model == null) {
+                    return;
+                }
+                if (isComplete(model, entry.query)) {
+                    break;
+                }
+                days = Math.min(days * 2, entry.query.maxDays);
+                if (LOGD) Log.d(TAG, "Too few rows - widen to " + days + " days");
+            }
+        }
+        synchronized (sEntries) {
+            if (version != entry.version) {
+                // superseded - the newer load publishes its own model
+                if (LOGD) Log.d(TAG, "Drop superseded load " + version);
+                return;
+            }
+            entry.fullLoad = false;
+            entry.detectChanges = false;
+            entry.changedEventIds.clear();
+            entry.model = model;
+        }
+        entry.eventStates = eventStates;
+
+        scheduleNextUpdate(context, now, tz);
+        notifyWidgets(context, takeNotifyIds(entry, model.hasSameRows(previous)));
+    }
+
+    /**
+     * @param previous - model to merge into or null for a full load
+     * @return the model or null if the query failed
+     */
+    private static CalendarAppWidgetModel queryModel(Context context, Query query, int days,
+            String selection, CalendarAppWidgetModel previous, Set<Long> changedEventIds,
+            String tz) {
+        Cursor cursor = context.getContentResolver().query(createLoaderUri(days),
+                CalendarAppWidgetService.EVENT_PROJECTION, selection, null,
+                CalendarAppWidgetService.EVENT_SORT_ORDER + " LIMIT " + query.getLimit());
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (previous == null) {
+                return CalendarAppWidgetService.CalendarFactory.buildAppWidgetModel(
+                        context, cursor, tz, days);
+            }
+            CalendarAppWidgetModel model = new CalendarAppWidgetModel(context, tz, days);
+            model.buildFromModel(previous, changedEventIds, cursor, tz);
+            return model;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param days - always the look-ahead so the states of one entry can be
+     *               compared no matter how far its window was widened
+     * @return the state of the events that may have instances in the window
+     * or null if the query failed
+     */
+    private static Map<Long, EventState> queryEventStates(Context context, int days) {
+        long now = System.currentTimeMillis();
+        // same window as the instances query
+        long begin = now - DateUtils.DAY_IN_MILLIS;
+        long end = now + getSearchDuration(days) + DateUtils.DAY_IN_MILLIS;
+        Cursor cursor = context.getContentResolver().query(Events.CONTENT_URI,
+                EVENT_STATE_PROJECTION, EVENT_STATE_SELECTION,
+                new String[] { Long.toString(end), Long.toString(begin) }, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final int columnCount = cursor.getColumnCount();
+            Map<Long, EventState> states = new HashMap<Long, EventState>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                int hash = 1;
+                for (int i = INDEX_STATE_ORIGINAL_ID; i < columnCount; i++) {
+                    String value = cursor.getString(i);
+                    hash = 31 * hash + (value != null ? value.hashCode() : 0);
+                }
+                long originalId = cursor.isNull(INDEX_STATE_ORIGINAL_ID)
+                        ? -1 : cursor.getLong(INDEX_STATE_ORIGINAL_ID);
+                states.put(cursor.getLong(INDEX_STATE_ID), new EventState(originalId, hash));
+            }
+            return states;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the events that are new, gone or changed between previous and
+     * current. A changed exception also changes the instances of the
+     * recurring event it belongs to.
+     *
+     * @return false if the changes are unknown or too many to merge
+     */
+    private static boolean findChangedEvents(Map<Long, EventState> previous,
+            Map<Long, EventState> current, Set<Long> changedEventIds) {
+        if (previous == null || current == null) {
+            return false;
+        }
+        for (Map.Entry<Long, EventState> state : current.entrySet()) {
+            EventState previousState = previous.get(state.getKey());
+            if (previousState == null || previousState.hash != state.getValue().hash) {
+                addChangedEvent(state.getKey(), state.getValue(), changedEventIds);
+            }
+        }
+        for (Map.Entry<Long, EventState> state : previous.entrySet()) {
+            if (!current.containsKey(state.getKey())) {
+                addChangedEvent(state.getKey(), state.getValue(), changedEventIds);
+            }
+        }
+        if (LOGD) Log.d(TAG, "Changed events " + changedEventIds);
+        return changedEventIds.size() <= MAX_MERGED_EVENTS;
+    }
+
+    private static void addChangedEvent(long eventId, EventState state, Set<Long> changedEventIds) {
+        changedEventIds.add(eventId);
+        if (state.originalId != -1) {
+            changedEventIds.add(state.originalId);
+        }
+    }
+
+    /**
+     * @return true if the window of the model must not be widened
+     */
+    private static boolean isComplete(CalendarAppWidgetModel model, Query query) {
+        return model.mDays >= query.maxDays
+                || model.mRowInfos.size() >= query.rows
+                || model.mQueryCount >= query.getLimit();
+    }
+
+    /**
+     * @return true if the events of the model can be reused
+     */
+    private static boolean canMerge(CalendarAppWidgetModel model, Query query, String tz) {
+        if (model == null || !model.mTimeZone.equals(tz)) {
+            return false;
+        }
+        // events beyond the limit of the query are not in the model
+        if (model.mQueryCount >= query.getLimit()) {
+            return false;
+        }
+        // day headers and the window of the model start at the day it was built
+        Time time = new Time(tz);
+        time.setToNow();
+        return Time.getJulianDay(System.currentTimeMillis(), time.gmtoff) == model.mTodayJulianDay;
+    }
+
+    /**
+     * Query across all calendars for upcoming event instances from now
+     * until some time in the future. Widen the time range that we query by
+     * one day on each end so that we can catch all-day events. All-day
+     * events are stored starting at midnight in UTC but should be included
+     * in the list of events starting at midnight local time. This may fetch
+     * more events than we actually want, so we filter them out later.
+     */
+    private static Uri createLoaderUri(int days) {
+        long now = System.currentTimeMillis();
+        // Add a day on either side to catch all-day events
+        long begin = now - DateUtils.DAY_IN_MILLIS;
+        long end = now + getSearchDuration(days) + DateUtils.DAY_IN_MILLIS;
+
+        return Uri.withAppendedPath(Instances.CONTENT_URI, Long.toString(begin) + "/" + end);
+    }
+
+    private static long getSearchDuration(int days) {
+        return days * DateUtils.DAY_IN_MILLIS;
+    }
+
+    /**
+     * This gets the selection string for the query.
+     */
+    private static String queryForSelection(Query query) {
+        return query.hideDeclined
+                ? CalendarAppWidgetService.EVENT_SELECTION_HIDE_DECLINED
+                : CalendarAppWidgetService.EVENT_SELECTION;
+    }
+
+    private static void scheduleNextUpdate(Context context, long now, String tz) {
+        // Schedule an alarm to wake ourselves up for the next update.
+        // We also cancel all existing wake-ups because PendingIntents don't
+        // match against extras. The alarm is shared so it must fit all models.
+        long triggerTime = getNextMidnightTimeMillis(tz);
+        synchronized (sEntries) {
+            for (Entry entry : sEntries.values()) {
+                if (entry.model != null) {
+                    triggerTime = Math.min(triggerTime,
+                            calculateUpdateTime(entry.model, now, tz));
+                }
+            }
+        }
+
+        // If no next-update calculated, or bad trigger time in past, schedule
+        // update about six hours from now.
+        if (triggerTime < now) {
+            Log.w(TAG, "Encountered bad trigger time "
+                    + CalendarAppWidgetService.formatDebugTime(triggerTime, now));
+            triggerTime = now + UPDATE_TIME_NO_EVENTS;
+        }
+
+        final AlarmManager alertManager = (AlarmManager) context
+                .getSystemService(Context.ALARM_SERVICE);
+        final PendingIntent pendingUpdate = CalendarAppWidgetProvider.getUpdateIntent(context);
+
+        alertManager.cancel(pendingUpdate);
+        alertManager.set(AlarmManager.RTC, triggerTime, pendingUpdate);
+        Time time = new Time(Utils.getTimeZone(context, null));
+        time.setToNow();
+
+        if (time.normalize(true) != sLastUpdateTime) {
+            Time time2 = new Time(Utils.getTimeZone(context, null));
+            time2.set(sLastUpdateTime);
+            time2.normalize(true);
+            if (time.year != time2.year || time.yearDay != time2.yearDay) {
+                final Intent updateIntent = new Intent(Utils.getWidgetUpdateAction(context));
+                context.sendBroadcast(updateIntent);
+            }
+
+            sLastUpdateTime = time.toMillis(true);
+        }
+    }
+
+    private static void notifyWidgets(Context context, int[] ids) {
+        if (ids.length != 0) {
+            AppWidgetManager.getInstance(context).notifyAppWidgetViewDataChanged(ids,
+                    R.id.events_list);
+        }
+    }
+
+    /**
+     * @param unchanged - true if no visible row of the model changed
+     * @return the widgets of the entry that must be notified - resets the requested ones
+     */
+    private static int[] takeNotifyIds(Entry entry, boolean unchanged) {
+        final List<Integer> ids = new ArrayList<Integer>();
+        synchronized (sEntries) {
+            if (unchanged) {
+                if (LOGD && entry.notifyIds.isEmpty()) Log.d(TAG, "No visible change");
+                ids.addAll(entry.notifyIds);
+            } else {
+                for (int i = 0; i < sWidgetQueries.size(); i++) {
+                    if (entry.query.equals(sWidgetQueries.valueAt(i))) {
+                        ids.add(sWidgetQueries.keyAt(i));
+                    }
+                }
+            }
+            entry.notifyIds.clear();
+        }
+        int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Calculates and returns the next time we should push widget updates.
+     */
+    private static long calculateUpdateTime(CalendarAppWidgetModel model, long now, String timeZone) {
+        // Make sure an update happens at midnight or earlier
+        long minUpdateTime = getNextMidnightTimeMillis(timeZone);
+        for (CalendarAppWidgetModel.EventInfo event : model.mEventInfos) {
+            final long start;
+            final long end;
+            start = event.start;
+            end = event.end;
+
+            // We want to update widget when we enter/exit time range of an event.
+            if (now < start) {
+                minUpdateTime = Math.min(minUpdateTime, start);
+            } else if (now < end) {
+                minUpdateTime = Math.min(minUpdateTime, end);
+            }
+        }
+        return minUpdateTime;
+    }
+
+    private static long getNextMidnightTimeMillis(String timezone) {
+        Time time = new Time();
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightDeviceTz = time.normalize(true);
+
+        time.timezone = timezone;
+        time.setToNow();
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        long midnightHomeTz = time.normalize(true);
+
+        return Math.min(midnightDeviceTz, midnightHomeTz);
+    }
+
+    private static boolean isPermissionEnabled(Context context) {
+        if (context.checkSelfPermission(Manifest.permission.READ_CONTACTS)
+                    != PackageManager.PERMISSION_GRANTED ||
+            context.checkSelfPermission(Manifest.permission.WRITE_CALENDAR)
+                    != PackageManager.PERMISSION_GRANTED) {
+                return false;
+        }
+        return true;
+    }
+}
@@ -17,8 +17,6 @@
 package org.omnirom.omniextras.calendar;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.database.MatrixCursor;
 import android.graphics.Color;
 import android.text.format.DateUtils;
 import android.text.format.Time;
@@ -89,30 +87,6 @@ public class Utils {
         return mTZUtils.formatDateRange(context, startMillis, endMillis, flags);
     }
 
-
-    public static MatrixCursor matrixCursorFromCursor(Cursor cursor) {
-        if (cursor == null) {
-            return null;
-        }
-
-        String[] columnNames = cursor.getColumnNames();
-        if (columnNames == null) {
-            columnNames = new String[] {};
-        }
-        MatrixCursor newCursor = new MatrixCursor(columnNames);
-        int numColumns = cursor.getColumnCount();
-        String data[] = new String[numColumns];
-        cursor.moveToPosition(-1);
-        while (cursor.moveToNext()) {
-            for (int i = 0; i < numColumns; i++) {
-                data[i] = cursor.getString(i);
-            }
-            newCursor.addRow(data);
-        }
-        return newCursor;
-    }
-
-
     /**
      * Convert given UTC time into current local time. This assumes it is for an
      * allday event and will adjust the time to be on a midnight boundary.
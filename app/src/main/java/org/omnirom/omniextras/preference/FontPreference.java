@@ -60,7 +60,7 @@ public class FontPreference extends ListPreference {
         super.onBindView(view);
         mFontSample = (TextView) view.findViewById(R.id.font_sample);
         if (getValue() != null) {
-            Typeface tface = Typeface.createFromFile(getValue());
+            Typeface tface = TypefaceCache.get(getValue());
             if (tface != null) {
                 mFontSample.setTypeface(tface);
             }
@@ -0,0 +1,84 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omniextras.preference;
+
+import android.graphics.Typeface;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+
+/**
+ * Process wide cache of typefaces loaded from font files. An entry is
+ * reloaded if the modification time or size of the file changed.
+ */
+public class TypefaceCache {
+    private static final String TAG = "TypefaceCache";
+    private static final boolean LOGGING = false;
+
+    private static final int MAX_CACHED_TYPEFACES = 8;
+
+    private static class Entry {
+        final Typeface typeface;
+        final long lastModified;
+        final long length;
+
+        Entry(Typeface typeface, long lastModified, long length) {
+            this.typeface = typeface;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    private static final LruCache<String, Entry> sCache =
+            new LruCache<String, Entry>(MAX_CACHED_TYPEFACES);
+
+    /**
+     * @return the typeface of the font file or null if it cannot be loaded
+     */
+    public static Typeface get(String path) {
+        if (path == null) {
+            return null;
+        }
+        final File file = new File(path);
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        if (lastModified == 0) {
+            // does not exist (anymore)
+            sCache.remove(path);
+            return null;
+        }
+        Entry entry = sCache.get(path);
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            return entry.typeface;
+        }
+        if (LOGGING) {
+            Log.i(TAG, "load " + path);
+        }
+        Typeface typeface;
+        try {
+            typeface = Typeface.createFromFile(file);
+        } catch (Exception e) {
+            Log.e(TAG, "failed to load " + path, e);
+            sCache.remove(path);
+            return null;
+        }
+        sCache.put(path, new Entry(typeface, lastModified, length));
+        return typeface;
+    }
+}
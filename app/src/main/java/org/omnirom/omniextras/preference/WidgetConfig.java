@@ -0,0 +1,175 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omniextras.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Color;
+import android.preference.PreferenceManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Immutable snapshot of the settings of one widget. Snapshots are cached per
+ * appWidgetId and dropped as soon as one of the widget's preferences changes.
+ */
+public class WidgetConfig {
+    private static final String TAG = "WidgetConfig";
+    private static final boolean LOGGING = false;
+
+    public static final int TYPE_CLOCK = 0;
+    public static final int TYPE_ANALOG_CLOCK = 1;
+    public static final int TYPE_WEATHER = 2;
+    public static final int TYPE_CALENDAR = 3;
+
+    // preference keys - stored per widget as key_appWidgetId
+    // clocks
+    public static final String KEY_SHOW_ALARM = "show_alarm";
+    public static final String KEY_SHOW_DATE = "show_date";
+    public static final String KEY_CLOCK_FONT = "clock_font";
+    public static final String KEY_CLOCK_COLOR = "clock_color";
+    public static final String KEY_CLOCK_SHADOW = "clock_shadow";
+    public static final String KEY_NATIVE_CLOCK = "native_clock";
+    // same as the default of native_clock in custom_appwidget_configure.xml
+    public static final boolean DEFAULT_NATIVE_CLOCK = true;
+
+    // weather
+    public static final String KEY_ICON_PACK = "weather_icon_pack";
+    public static final String KEY_BACKGROUND_SHADOW = "show_background";
+    public static final String KEY_COMPACT_RENDERING = "compact_rendering";
+
+    // calendar
+    public static final String KEY_LOOK_AHEAD_DAYS = "calendar_look_ahead_days";
+    public static final String KEY_HIDE_DECLINED = "calendar_hide_declined";
+    public static final int DEFAULT_LOOK_AHEAD_DAYS = 14;
+
+    private static final SparseArray<WidgetConfig> sConfigs = new SparseArray<WidgetConfig>();
+
+    // SharedPreferences only keeps a weak reference to its listeners
+    private static SharedPreferences.OnSharedPreferenceChangeListener sPrefsListener;
+
+    public final int appWidgetId;
+    public final int type;
+
+    // clocks
+    public final boolean showAlarm;
+    public final boolean showDate;
+    public final String clockFontPath;
+    public final int clockColor;
+    public final boolean clockShadow;
+    public final boolean nativeClock;
+
+    // weather
+    public final String iconPack;
+    public final boolean backgroundShadow;
+    public final boolean compactRendering;
+
+    // calendar
+    public final int lookAheadDays;
+    public final boolean hideDeclined;
+
+    public static WidgetConfig get(Context context, int appWidgetId, int type) {
+        synchronized (sConfigs) {
+            WidgetConfig config = sConfigs.get(appWidgetId);
+            if (config != null && config.type == type) {
+                return config;
+            }
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            if (sPrefsListener == null) {
+                sPrefsListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                        invalidate(key);
+                    }
+                };
+                prefs.registerOnSharedPreferenceChangeListener(sPrefsListener);
+            }
+            if (LOGGING) {
+                Log.i(TAG, "load " + appWidgetId + " type = " + type);
+            }
+            config = new WidgetConfig(prefs, appWidgetId, type);
+            sConfigs.put(appWidgetId, config);
+            return config;
+        }
+    }
+
+    /**
+     * Drop the cached snapshot of the widget the key belongs to.
+     * All widget preferences use the format key_appWidgetId.
+     */
+    private static void invalidate(String key) {
+        int idx = key != null ? key.lastIndexOf('_') : -1;
+        if (idx == -1) {
+            return;
+        }
+        try {
+            int appWidgetId = Integer.parseInt(key.substring(idx + 1));
+            synchronized (sConfigs) {
+                sConfigs.delete(appWidgetId);
+            }
+        } catch (NumberFormatException e) {
+            // not a widget preference
+        }
+    }
+
+    private WidgetConfig(SharedPreferences prefs, int appWidgetId, int type) {
+        this.appWidgetId = appWidgetId;
+        this.type = type;
+
+        final String suffix = "_" + appWidgetId;
+        if (type == TYPE_CLOCK || type == TYPE_ANALOG_CLOCK) {
+            // the analog clock shows nothing but the time by default
+            final boolean defaultShow = type == TYPE_CLOCK;
+            showAlarm = prefs.getBoolean(KEY_SHOW_ALARM + suffix, defaultShow);
+            showDate = prefs.getBoolean(KEY_SHOW_DATE + suffix, defaultShow);
+        } else {
+            showAlarm = false;
+            showDate = false;
+        }
+        if (type == TYPE_CLOCK) {
+            clockFontPath = prefs.getString(KEY_CLOCK_FONT + suffix, null);
+            clockColor = prefs.getInt(KEY_CLOCK_COLOR + suffix, Color.WHITE);
+            clockShadow = prefs.getBoolean(KEY_CLOCK_SHADOW + suffix, true);
+            // custom fonts can only be used with a bitmap
+            nativeClock = prefs.getBoolean(KEY_NATIVE_CLOCK + suffix, DEFAULT_NATIVE_CLOCK)
+                    && clockFontPath == null;
+        } else {
+            clockFontPath = null;
+            clockColor = Color.WHITE;
+            clockShadow = false;
+            nativeClock = false;
+        }
+        if (type == TYPE_WEATHER) {
+            iconPack = prefs.getString(KEY_ICON_PACK + suffix, "");
+            backgroundShadow = prefs.getBoolean(KEY_BACKGROUND_SHADOW + suffix, false);
+            compactRendering = prefs.getBoolean(KEY_COMPACT_RENDERING + suffix, false);
+        } else {
+            iconPack = "";
+            backgroundShadow = false;
+            compactRendering = false;
+        }
+        if (type == TYPE_CALENDAR) {
+            lookAheadDays = Math.max(1, prefs.getInt(KEY_LOOK_AHEAD_DAYS + suffix,
+                    DEFAULT_LOOK_AHEAD_DAYS));
+            hideDeclined = prefs.getBoolean(KEY_HIDE_DECLINED + suffix, true);
+        } else {
+            lookAheadDays = DEFAULT_LOOK_AHEAD_DAYS;
+            hideDeclined = true;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright (C) 2017 The OmniROM Project
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.omnirom.omniextras.preference;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk operations on the widget preferences stored as key_appWidgetId in the
+ * default SharedPreferences. Every operation is a single edit that is written
+ * asynchronously.
+ */
+public class WidgetConfigStore {
+    private static final String TAG = "WidgetConfigStore";
+
+    public static String getKey(String key, int appWidgetId) {
+        return key + "_" + appWidgetId;
+    }
+
+    /**
+     * Remove the given keys of all widgets.
+     */
+    public static void clear(Context context, String[] keys, int[] appWidgetIds) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = prefs.edit();
+        for (int id : appWidgetIds) {
+            for (String key : keys) {
+                editor.remove(getKey(key, id));
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Move the given keys from the old to the new ids. Ids may be contained in both
+     * arrays so all old values are read before anything is changed.
+     */
+    public static void remap(Context context, String[] keys, int[] oldIds, int[] newIds) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        Map<String, ?> all = prefs.getAll();
+        SharedPreferences.Editor editor = prefs.edit();
+        // the last change of a key wins so removing first keeps the remapped values
+        for (int oldId : oldIds) {
+            for (String key : keys) {
+                editor.remove(getKey(key, oldId));
+            }
+        }
+        for (int i = 0; i < oldIds.length && i < newIds.length; i++) {
+            for (String key : keys) {
+                Object value = all.get(getKey(key, oldIds[i]));
+                if (value != null) {
+                    put(editor, getKey(key, newIds[i]), value);
+                }
+            }
+        }
+        editor.apply();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(SharedPreferences.Editor editor, String key, Object value) {
+        if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Set) {
+            editor.putStringSet(key, (Set<String>) value);
+        } else {
+            Log.w(TAG, "unsupported value type of " + key);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.weather;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolved weather icon packs. The resource ids of all condition codes are
+ * looked up once per pack and the icons are kept as bitmaps of their
+ * intrinsic size. Everything of a package is dropped when it changes or
+ * is removed.
+ */
+class IconPackCache {
+    private static final String TAG = "WeatherService:IconPackCache";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_CONDITION_CODE = 47;
+    // index of the not available icon
+    private static final int NA_INDEX = MAX_CONDITION_CODE + 1;
+    private static final int MAX_ICON_BYTES = 4 * 1024 * 1024;
+
+    static class IconPack {
+        final String iconPack;
+        final String packageName;
+        final String prefix;
+        final Resources res;
+        private final int[] mResIds = new int[NA_INDEX + 1];
+
+        private IconPack(String iconPack, String packageName, String prefix, Resources res) {
+            this.iconPack = iconPack;
+            this.packageName = packageName;
+            this.prefix = prefix;
+            this.res = res;
+            for (int i = 0; i <= MAX_CONDITION_CODE; i++) {
+                mResIds[i] = res.getIdentifier(prefix + "_" + i, "drawable", packageName);
+            }
+            mResIds[NA_INDEX] = res.getIdentifier(prefix + "_na", "drawable", packageName);
+        }
+
+        /**
+         * @return the resource id or 0 if the pack has no icon for it
+         */
+        int getResId(int conditionCode) {
+            if (conditionCode < 0 || conditionCode > MAX_CONDITION_CODE) {
+                return mResIds[NA_INDEX];
+            }
+            return mResIds[conditionCode] != 0 ? mResIds[conditionCode] : mResIds[NA_INDEX];
+        }
+    }
+
+    private static final Map<String, IconPack> sPacks = new HashMap<String, IconPack>();
+    // packs that could not be loaded until a package changes
+    private static final Set<String> sMissingPacks = new HashSet<String>();
+    private static final LruCache<String, Bitmap> sIcons =
+            new LruCache<String, Bitmap>(MAX_ICON_BYTES) {
+                @Override
+                protected int sizeOf(String key, Bitmap value) {
+                    return value.getAllocationByteCount();
+                }
+            };
+    private static BroadcastReceiver sPackageReceiver;
+
+    /**
+     * @param iconPack - package.prefix of the icon pack
+     * @return the pack or null if the package is not available
+     */
+    static synchronized IconPack getIconPack(Context context, String iconPack) {
+        IconPack pack = sPacks.get(iconPack);
+        if (pack != null || sMissingPacks.contains(iconPack)) {
+            return pack;
+        }
+        registerPackageReceiver(context);
+        int idx = iconPack.lastIndexOf(".");
+        if (idx == -1) {
+            sMissingPacks.add(iconPack);
+            return null;
+        }
+        String packageName = iconPack.substring(0, idx);
+        String prefix = iconPack.substring(idx + 1);
+        if (!isAvailableApp(context, packageName)) {
+            sMissingPacks.add(iconPack);
+            return null;
+        }
+        try {
+            Resources res = context.getPackageManager().getResourcesForApplication(packageName);
+            pack = new IconPack(iconPack, packageName, prefix, res);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to load icon pack " + iconPack);
+            sMissingPacks.add(iconPack);
+            return null;
+        }
+        if (DEBUG) Log.d(TAG, "Loaded icon pack " + iconPack);
+        sPacks.put(iconPack, pack);
+        return pack;
+    }
+
+    /**
+     * @return bitmap of the condition icon in its intrinsic size or null
+     */
+    static synchronized Bitmap getIcon(IconPack pack, int conditionCode) {
+        int resId = pack.getResId(conditionCode);
+        if (resId == 0) {
+            return null;
+        }
+        String key = pack.iconPack + "|" + resId;
+        Bitmap icon = sIcons.get(key);
+        if (icon == null) {
+            try {
+                Drawable d = pack.res.getDrawable(resId, null);
+                icon = Bitmap.createBitmap(d.getIntrinsicWidth(), d.getIntrinsicHeight(),
+                        Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(icon);
+                d.setBounds(0, 0, d.getIntrinsicWidth(), d.getIntrinsicHeight());
+                d.draw(canvas);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to get condition image for " + conditionCode);
+                return null;
+            }
+            sIcons.put(key, icon);
+        }
+        return icon;
+    }
+
+    /**
+     * @return true if icons of that package might have been in use
+     */
+    private static synchronized boolean invalidatePackage(String packageName) {
+        // might be available now - tiles drawn with the default icon are stale
+        boolean changed = !sMissingPacks.isEmpty();
+        sMissingPacks.clear();
+        Iterator<IconPack> it = sPacks.values().iterator();
+        while (it.hasNext()) {
+            IconPack pack = it.next();
+            if (pack.packageName.equals(packageName)) {
+                if (DEBUG) Log.d(TAG, "Drop icon pack " + pack.iconPack);
+                it.remove();
+                changed = true;
+                for (String key : sIcons.snapshot().keySet()) {
+                    if (key.startsWith(pack.iconPack + "|")) {
+                        sIcons.remove(key);
+                    }
+                }
+            }
+        }
+        return changed;
+    }
+
+    private static void registerPackageReceiver(Context context) {
+        if (sPackageReceiver != null) {
+            return;
+        }
+        sPackageReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                Uri data = intent.getData();
+                if (data == null) {
+                    return;
+                }
+                String packageName = data.getSchemeSpecificPart();
+                if (invalidatePackage(packageName)) {
+                    WeatherAppWidgetProvider.invalidateTiles();
+                }
+                if (OmniJawsClient.SERVICE_PACKAGE.equals(packageName)) {
+                    WeatherRepository.get(context).invalidate();
+                }
+            }
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addDataScheme("package");
+        context.getApplicationContext().registerReceiver(sPackageReceiver, filter);
+    }
+
+    private static boolean isAvailableApp(Context context, String packageName) {
+        final PackageManager pm = context.getPackageManager();
+        try {
+            pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES);
+            int enabled = pm.getApplicationEnabledSetting(packageName);
+            return enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED &&
+                    enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+}
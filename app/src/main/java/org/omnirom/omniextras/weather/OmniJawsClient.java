@@ -21,17 +21,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
-import android.content.res.Resources;
-import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.omnirom.omniextras.R;
 
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -63,28 +63,87 @@ public class OmniJawsClient {
             "forecast_date"
     };
 
-    final String[] SETTINGS_PROJECTION = new String[] {
-            "enabled",
-            "units"
-    };
-
-    private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
-
+    /**
+     * Weather data as delivered by the provider. The values are only formatted
+     * when they are shown and the formatted strings are kept.
+     */
     public static class WeatherInfo {
         public String city;
-        public String windSpeed;
-        public String windDirection;
+        public float windSpeed;
+        public int windDirection;
         public int conditionCode;
-        public String temp;
+        public float temp;
         public String humidity;
         public String condition;
-        public Long timeStamp;
+        public long timeStamp;
         public List<DayForecast> forecasts;
-        public String tempUnits;
-        public String windUnits;
+        public boolean metric;
+
+        private String mFormattedTemp;
+        private String mFormattedWindSpeed;
+        private String mFormattedWindDirection;
+
+        public String getFormattedTemperature() {
+            if (mFormattedTemp == null) {
+                mFormattedTemp = formatValue(temp);
+            }
+            return mFormattedTemp;
+        }
+
+        public String getFormattedWindSpeed() {
+            if (mFormattedWindSpeed == null) {
+                mFormattedWindSpeed = formatValue(windSpeed);
+            }
+            return mFormattedWindSpeed;
+        }
+
+        public String getFormattedWindDirection() {
+            if (mFormattedWindDirection == null) {
+                mFormattedWindDirection = windDirection + "\u00b0";
+            }
+            return mFormattedWindDirection;
+        }
+
+        public String getTempUnits() {
+            return metric ? "\u00b0C" : "\u00b0F";
+        }
+
+        public String getWindUnits() {
+            return metric ? "km/h" : "mph";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WeatherInfo)) {
+                return false;
+            }
+            WeatherInfo other = (WeatherInfo) o;
+            return timeStamp == other.timeStamp
+                    && conditionCode == other.conditionCode
+                    && windDirection == other.windDirection
+                    && metric == other.metric
+                    && Float.compare(temp, other.temp) == 0
+                    && Float.compare(windSpeed, other.windSpeed) == 0
+                    && TextUtils.equals(city, other.city)
+                    && TextUtils.equals(humidity, other.humidity)
+                    && TextUtils.equals(condition, other.condition)
+                    && (forecasts == null ? other.forecasts == null : forecasts.equals(other.forecasts));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (timeStamp ^ (timeStamp >>> 32));
+            result = 31 * result + conditionCode;
+            result = 31 * result + Float.floatToIntBits(temp);
+            result = 31 * result + (city != null ? city.hashCode() : 0);
+            return result;
+        }
 
         public String toString() {
-            return city + ":" + new Date(timeStamp) + ": " + windSpeed + ":" + windDirection + ":" +conditionCode + ":" + temp + ":" + humidity + ":" + condition + ":" + tempUnits + ":" + windUnits + ": " + forecasts;
+            return city + ":" + new Date(timeStamp) + ": " + windSpeed + ":" + windDirection + ":" +conditionCode + ":" + temp + ":" + humidity + ":" + condition + ":" + getTempUnits() + ":" + getWindUnits() + ": " + forecasts;
         }
 
         public String getLastUpdateTime() {
@@ -94,25 +153,84 @@ public class OmniJawsClient {
     }
 
     public static class DayForecast {
-        public String low;
-        public String high;
+        public float low;
+        public float high;
         public int conditionCode;
         public String condition;
         public String date;
 
+        private String mFormattedLow;
+        private String mFormattedHigh;
+
+        public String getFormattedLow() {
+            if (mFormattedLow == null) {
+                mFormattedLow = formatValue(low);
+            }
+            return mFormattedLow;
+        }
+
+        public String getFormattedHigh() {
+            if (mFormattedHigh == null) {
+                mFormattedHigh = formatValue(high);
+            }
+            return mFormattedHigh;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof DayForecast)) {
+                return false;
+            }
+            DayForecast other = (DayForecast) o;
+            return conditionCode == other.conditionCode
+                    && Float.compare(low, other.low) == 0
+                    && Float.compare(high, other.high) == 0
+                    && TextUtils.equals(condition, other.condition)
+                    && TextUtils.equals(date, other.date);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = conditionCode;
+            result = 31 * result + Float.floatToIntBits(low);
+            result = 31 * result + Float.floatToIntBits(high);
+            return result;
+        }
+
         public String toString() {
             return "[" + low + ":" + high + ":" +conditionCode + ":" + condition + ":" + date + "]";
         }
     }
 
+    private static final DecimalFormat sNoDigitsFormat = new DecimalFormat("0");
+
+    /**
+     * @return the value without fraction digits or - if there is none
+     */
+    private static String formatValue(float value) {
+        if (Float.isNaN(value)) {
+            return "-";
+        }
+        String formatted;
+        // DecimalFormat is not thread safe
+        synchronized (sNoDigitsFormat) {
+            formatted = sNoDigitsFormat.format(value);
+        }
+        if (formatted.equals("-0")) {
+            formatted = "0";
+        }
+        return formatted;
+    }
 
     private Context mContext;
     private WeatherInfo mCachedInfo;
-    private Resources mRes;
-    private String mPackageName;
-    private String mIconPrefix;
+    private IconPackCache.IconPack mIconPack;
     private String mSettingIconPackage;
-    private boolean mMetric;
+    // the data is the last known one and not from the provider
+    private boolean mLastKnown;
 
     public OmniJawsClient(Context context) {
         mContext = context;
@@ -142,118 +260,96 @@ public class OmniJawsClient {
         return mCachedInfo;
     }
 
-    private static String getFormattedValue(float value) {
-        if (Float.isNaN(value)) {
-            return "-";
-        }
-        String formatted = sNoDigitsFormat.format(value);
-        if (formatted.equals("-0")) {
-            formatted = "0";
+    /**
+     * Get the current weather data. Only queries the provider if it changed.
+     */
+    public void queryWeather() {
+        mCachedInfo = WeatherRepository.get(mContext).getWeatherInfo();
+        mLastKnown = false;
+        if (mCachedInfo == null) {
+            Log.w(TAG, "queryWeather no data or disabled");
         }
-        return formatted;
     }
 
-    public void queryWeather() {
-        if (!isOmniJawsEnabled()) {
-            Log.w(TAG, "queryWeather while disabled");
-            mCachedInfo = null;
-            return;
-        }
-        Cursor c = mContext.getContentResolver().query(WEATHER_URI, WEATHER_PROJECTION,
-                null, null, null);
-        mCachedInfo = null;
-        if (c != null) {
-            try {
-                int count = c.getCount();
-                if (count > 0) {
-                    mCachedInfo = new WeatherInfo();
-                    List<DayForecast> forecastList = new ArrayList<DayForecast>();
-                    int i = 0;
-                    for (i = 0; i < count; i++) {
-                        c.moveToPosition(i);
-                        if (i == 0) {
-                            mCachedInfo.city = c.getString(0);
-                            mCachedInfo.windSpeed = getFormattedValue(c.getFloat(1));
-                            mCachedInfo.windDirection = String.valueOf(c.getInt(2)) + "\u00b0";
-                            mCachedInfo.conditionCode = c.getInt(3);
-                            mCachedInfo.temp = getFormattedValue(c.getFloat(4));
-                            mCachedInfo.humidity = c.getString(5);
-                            mCachedInfo.condition = c.getString(6);
-                            mCachedInfo.timeStamp = Long.valueOf(c.getString(11));
-                        } else {
-                            DayForecast day = new DayForecast();
-                            day.low = getFormattedValue(c.getFloat(7));
-                            day.high = getFormattedValue(c.getFloat(8));
-                            day.condition = c.getString(9);
-                            day.conditionCode = c.getInt(10);
-                            day.date = c.getString(12);
-                            forecastList.add(day);
-                        }
-                    }
-                    mCachedInfo.forecasts = forecastList;
-                }
-            } finally {
-                c.close();
-            }
-        }
-        updateUnits();
-        if (DEBUG) Log.d(TAG, "queryWeather " + mCachedInfo);
+    /**
+     * Use the last known weather data without querying the provider.
+     * @return false if there is none
+     */
+    public boolean loadLastKnownWeather() {
+        mCachedInfo = WeatherRepository.get(mContext).getLastKnownWeatherInfo();
+        mLastKnown = true;
+        return mCachedInfo != null;
     }
 
     private void loadDefaultIconsPackage() {
-        mPackageName = ICON_PACKAGE_DEFAULT;
-        mIconPrefix = ICON_PREFIX_DEFAULT;
-        mSettingIconPackage = mPackageName + "." + mIconPrefix;
-        if (DEBUG) Log.d(TAG, "Load default icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
-        try {
-            PackageManager packageManager = mContext.getPackageManager();
-            mRes = packageManager.getResourcesForApplication(mPackageName);
-        } catch (Exception e) {
-            mRes = null;
-        }
-        if (mRes == null) {
+        mSettingIconPackage = ICON_PACKAGE_DEFAULT + "." + ICON_PREFIX_DEFAULT;
+        if (DEBUG) Log.d(TAG, "Load default icon pack " + mSettingIconPackage);
+        mIconPack = IconPackCache.getIconPack(mContext, mSettingIconPackage);
+        if (mIconPack == null) {
             Log.w(TAG, "No default package found");
         }
     }
 
+    /**
+     * @param iconPack - package.prefix of the icon pack or empty for the default one
+     */
     public void loadIconPackage(String iconPack) {
-        mSettingIconPackage = iconPack;
-        int idx = mSettingIconPackage.lastIndexOf(".");
-        mPackageName = mSettingIconPackage.substring(0, idx);
-        mIconPrefix = mSettingIconPackage.substring(idx + 1);
-        if (DEBUG) Log.d(TAG, "Load custom icon pack " + mSettingIconPackage + " " + mPackageName + " " + mIconPrefix);
-        try {
-            PackageManager packageManager = mContext.getPackageManager();
-            mRes = packageManager.getResourcesForApplication(mPackageName);
-        } catch (Exception e) {
-            mRes = null;
+        if (TextUtils.isEmpty(iconPack)) {
+            iconPack = ICON_PACKAGE_DEFAULT + "." + ICON_PREFIX_DEFAULT;
         }
-        if (mRes == null) {
+        if (iconPack.equals(mSettingIconPackage) && mIconPack != null) {
+            // already loaded
+            return;
+        }
+        mSettingIconPackage = iconPack;
+        if (DEBUG) Log.d(TAG, "Load custom icon pack " + mSettingIconPackage);
+        mIconPack = IconPackCache.getIconPack(mContext, mSettingIconPackage);
+        if (mIconPack == null) {
             Log.w(TAG, "Icon pack loading failed - loading default");
             loadDefaultIconsPackage();
         }
     }
 
+    /**
+     * @return package.prefix of the icon pack currently used
+     */
+    public String getIconPackage() {
+        return mSettingIconPackage;
+    }
+
+    /**
+     * @return true if the icons of the current pack are resources of this app
+     */
+    public boolean isLocalIconPack() {
+        return mIconPack != null && mIconPack.packageName.equals(mContext.getPackageName());
+    }
+
+    /**
+     * @return resource id of the condition icon or 0 - only valid for a local icon pack
+     */
+    public int getWeatherConditionResource(int conditionCode) {
+        if (mIconPack == null) {
+            return 0;
+        }
+        return mIconPack.getResId(conditionCode);
+    }
+
     public Drawable getWeatherConditionImage(int conditionCode) {
-        if (!isOmniJawsEnabled()) {
+        // the enabled state needs the provider - the last known data is only
+        // kept while omnijaws is enabled and is checked by the next query
+        if (!mLastKnown && !isOmniJawsEnabled()) {
             Log.w(TAG, "Requesting condition image while disabled");
             return null;
         }
-        if (!isAvailableApp(mPackageName)) {
-            Log.w(TAG, "Icon pack no longer available - loading default " + mPackageName);
-            loadDefaultIconsPackage();
-        }
-        if (mRes == null) {
+        if (mIconPack == null) {
             Log.w(TAG, "Requesting condition image while disabled");
             return null;
         }
-        try {
-            int resId = mRes.getIdentifier(mIconPrefix + "_" + conditionCode, "drawable", mPackageName);
-            return mRes.getDrawable(resId);
-        } catch(Exception e) {
-            Log.w(TAG, "Failed to get condition image for " + conditionCode);
+        Bitmap icon = IconPackCache.getIcon(mIconPack, conditionCode);
+        if (icon == null) {
             return null;
         }
+        return new BitmapDrawable(mContext.getResources(), icon);
     }
 
     public boolean isOmniJawsServiceInstalled() {
@@ -261,20 +357,7 @@ public class OmniJawsClient {
     }
 
     public boolean isOmniJawsEnabled() {
-        if (!isOmniJawsServiceInstalled()) {
-            return false;
-        }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                boolean enabled = c.getInt(0) == 1;
-                return enabled;
-            }
-        }
-        return true;
+        return WeatherRepository.get(mContext).isEnabled();
     }
 
     public void setOmniJawsEnabled(boolean value) {
@@ -287,33 +370,6 @@ public class OmniJawsClient {
         }
     }
 
-    private void updateUnits() {
-        if (!isOmniJawsServiceInstalled()) {
-            return;
-        }
-        final Cursor c = mContext.getContentResolver().query(SETTINGS_URI, SETTINGS_PROJECTION,
-                null, null, null);
-        if (c != null) {
-            int count = c.getCount();
-            if (count == 1) {
-                c.moveToPosition(0);
-                mMetric = c.getInt(1) == 0;
-                if (mCachedInfo != null) {
-                    mCachedInfo.tempUnits = getTemperatureUnit();
-                    mCachedInfo.windUnits = getWindUnit();
-                }
-            }
-        }
-    }
-
-    private String getTemperatureUnit() {
-        return "\u00b0" + (mMetric ? "C" : "F");
-    }
-
-    private String getWindUnit() {
-        return mMetric ? "km/h":"mph";
-    }
-
     private boolean isAvailableApp(String packageName) {
         final PackageManager pm = mContext.getPackageManager();
         try {
@@ -33,14 +33,21 @@ import android.preference.PreferenceManager;
 import android.view.View;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
+import org.omnirom.omniextras.preference.WidgetConfigStore;
 
 import java.util.ArrayList;
 import java.util.List;
 
 public class WeatherAppWidgetConfigure extends PreferenceActivity {
 
-    public static final String KEY_ICON_PACK = "weather_icon_pack";
-    public static final String KEY_BACKGROUND_SHADOW = "show_background";
+    public static final String KEY_ICON_PACK = WidgetConfig.KEY_ICON_PACK;
+    public static final String KEY_BACKGROUND_SHADOW = WidgetConfig.KEY_BACKGROUND_SHADOW;
+    public static final String KEY_COMPACT_RENDERING = WidgetConfig.KEY_COMPACT_RENDERING;
+
+    private static final String[] WIDGET_KEYS = {
+            KEY_ICON_PACK, KEY_BACKGROUND_SHADOW, KEY_COMPACT_RENDERING
+    };
 
     private static final String DEFAULT_WEATHER_ICON_PACKAGE = "org.omnirom.omniextras";
     private static final String CHRONUS_ICON_PACK_INTENT = "com.dvtonder.chronus.ICON_PACK";
@@ -89,7 +96,7 @@ public class WeatherAppWidgetConfigure extends PreferenceActivity {
         iconPack.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
             @Override
             public boolean onPreferenceChange(Preference preference, Object newValue) {
-                prefs.edit().putString(KEY_ICON_PACK + "_" + String.valueOf(mAppWidgetId), (String)newValue).commit();
+                prefs.edit().putString(WidgetConfigStore.getKey(KEY_ICON_PACK, mAppWidgetId), (String)newValue).apply();
                 int valueIndex = iconPack.findIndexOfValue((String)newValue);
                 iconPack.setSummary(iconPack.getEntries()[valueIndex]);
                 return false;
@@ -97,6 +104,7 @@ public class WeatherAppWidgetConfigure extends PreferenceActivity {
         });
 
         initPreference(KEY_BACKGROUND_SHADOW, prefs.getBoolean(KEY_BACKGROUND_SHADOW + "_" + mAppWidgetId, false));
+        initPreference(KEY_COMPACT_RENDERING, prefs.getBoolean(KEY_COMPACT_RENDERING + "_" + mAppWidgetId, false));
     }
 
     private void initPreference(String key, boolean value) {
@@ -105,7 +113,7 @@ public class WeatherAppWidgetConfigure extends PreferenceActivity {
         b.setDefaultValue(value);
         b.setChecked(value);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        prefs.edit().putBoolean(b.getKey(), value).commit();
+        prefs.edit().putBoolean(b.getKey(), value).apply();
     }
 
     public void handleOkClick(View v) {
@@ -116,22 +124,12 @@ public class WeatherAppWidgetConfigure extends PreferenceActivity {
         finish();
     }
 
-    public static void clearPrefs(Context context, int id) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        prefs.edit().remove(KEY_ICON_PACK + "_" + id).commit();
-        prefs.edit().remove(KEY_BACKGROUND_SHADOW + "_" + id).commit();
+    public static void clearPrefs(Context context, int[] ids) {
+        WidgetConfigStore.clear(context, WIDGET_KEYS, ids);
     }
 
-    public static void remapPrefs(Context context, int oldId, int newId) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-
-        String oldValue = prefs.getString(KEY_ICON_PACK + "_" + oldId, "");
-        prefs.edit().putString(KEY_ICON_PACK + "_" + newId, oldValue).commit();
-        prefs.edit().remove(KEY_ICON_PACK + "_" + oldId).commit();
-
-        boolean oldBoolean = prefs.getBoolean(KEY_BACKGROUND_SHADOW + "_" + oldId, false);
-        prefs.edit().putBoolean(KEY_BACKGROUND_SHADOW + "_" + newId, oldBoolean).commit();
-        prefs.edit().remove(KEY_BACKGROUND_SHADOW + "_" + oldId).commit();
+    public static void remapPrefs(Context context, int[] oldIds, int[] newIds) {
+        WidgetConfigStore.remap(context, WIDGET_KEYS, oldIds, newIds);
     }
 
     @Override
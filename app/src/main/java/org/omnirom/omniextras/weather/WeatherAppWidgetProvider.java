@@ -20,10 +20,10 @@ package org.omnirom.omniextras.weather;
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BlurMaskFilter;
@@ -36,20 +36,23 @@ import android.graphics.Typeface;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Parcel;
 import android.text.TextPaint;
-import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.TypedValue;
 import android.view.View;
 import android.widget.RemoteViews;
 
 import org.omnirom.omniextras.R;
+import org.omnirom.omniextras.preference.WidgetConfig;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final String TAG = "WeatherAppWidgetProvider";
@@ -59,6 +62,29 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     private static final String WEATHER_ERROR = "org.omnirom.omnijaws.WEATHER_ERROR";
     private static final String EXTRA_ERROR = "error";
     private static final int EXTRA_ERROR_DISABLED = 2;
+    private static final int[] FORECAST_VIEWS = new int[] {
+            R.id.forecast_0, R.id.forecast_1, R.id.forecast_2, R.id.forecast_3, R.id.forecast_4
+    };
+    private static final int[] FORECAST_IMAGES = new int[] {
+            R.id.forecast_image_0, R.id.forecast_image_1, R.id.forecast_image_2,
+            R.id.forecast_image_3, R.id.forecast_image_4
+    };
+    private static final int[] FORECAST_TEXTS = new int[] {
+            R.id.forecast_text_0, R.id.forecast_text_1, R.id.forecast_text_2,
+            R.id.forecast_text_3, R.id.forecast_text_4
+    };
+    // current and 5 forecast tiles of a few widgets with different icon packs
+    private static final int MAX_CACHED_TILES = 24;
+
+    // queries the provider on the first update after a restart
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private static final LruCache<String, Bitmap> sTileCache =
+            new LruCache<String, Bitmap>(MAX_CACHED_TILES);
+    private static Bitmap sRefreshIcon;
+    private static int sRefreshIconDensity;
+    private static TextPaint sTextPaint;
+    private static float sTextPaintDensity;
 
     @Override
     public void onEnabled(Context context) {
@@ -83,8 +109,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             if (LOGGING) {
                 Log.i(TAG, "onDeleted: " + id);
             }
-            WeatherAppWidgetConfigure.clearPrefs(context, id);
         }
+        WeatherAppWidgetConfigure.clearPrefs(context, appWidgetIds);
     }
 
     @Override
@@ -94,9 +120,9 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
             if (LOGGING) {
                 Log.i(TAG, "onRestored " + oldWidgetId + " " + newWidgetIds[i]);
             }
-            WeatherAppWidgetConfigure.remapPrefs(context, oldWidgetId, newWidgetIds[i]);
             i++;
         }
+        WeatherAppWidgetConfigure.remapPrefs(context, oldWidgetIds, newWidgetIds);
     }
 
     @Override
@@ -107,15 +133,26 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         }
         if (action.equals(WEATHER_UPDATE)
                 || Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+            if (action.equals(WEATHER_UPDATE)) {
+                // in case the provider does not notify its observers
+                WeatherRepository.get(context).invalidateWeather();
+                WeatherRefreshScheduler.onWeatherUpdated();
+            }
             updateAllWeather(context);
         }
         if (action.equals(REFRESH_BROADCAST)) {
-            showUpdateProgress(context);
-            OmniJawsClient weatherClient = new OmniJawsClient(context);
-            weatherClient.updateWeather();
+            if (WeatherRefreshScheduler.requestRefresh(context, WeatherRefreshScheduler.REASON_USER)) {
+                showUpdateProgress(context);
+            } else {
+                // dropped - redraw so the tap is not silently ignored
+                updateAllWeather(context);
+            }
         }
         if (action.equals(WEATHER_ERROR)) {
             int errorReason = intent.getIntExtra(EXTRA_ERROR, 0);
+            if (errorReason != EXTRA_ERROR_DISABLED) {
+                WeatherRefreshScheduler.onWeatherError();
+            }
             showErrorState(context, errorReason);
         }
         super.onReceive(context, intent);
@@ -124,6 +161,11 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         super.onUpdate(context, appWidgetManager, appWidgetIds);
+        updateAllWeather(context, goAsync());
+        // e.g. after boot - only if the weather is outdated
+        if (WeatherRefreshScheduler.requestRefresh(context, WeatherRefreshScheduler.REASON_AUTO)) {
+            showUpdateProgress(context);
+        }
     }
 
     @Override
@@ -144,16 +186,68 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
     }
 
     public static void updateAllWeather(Context context) {
+        updateAllWeather(context, null);
+    }
+
+    /**
+     * On the first update in this process the widgets are rendered from the
+     * weather snapshot right away and the provider is queried in the background.
+     * @param result - finished when the update is done or null
+     */
+    private static void updateAllWeather(final Context context, final BroadcastReceiver.PendingResult result) {
         if (LOGGING) {
             Log.i(TAG, "updateAllWeather at = " + new Date());
         }
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
-        if (appWidgetManager != null) {
-            ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
-            int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
-            for (int appWidgetId : appWidgetIds) {
-                updateWeather(context, appWidgetManager, appWidgetId);
+        final AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(context);
+        if (appWidgetManager == null) {
+            finish(result);
+            return;
+        }
+        ComponentName componentName = new ComponentName(context, WeatherAppWidgetProvider.class);
+        final int[] appWidgetIds = appWidgetManager.getAppWidgetIds(componentName);
+        if (appWidgetIds.length == 0) {
+            finish(result);
+            return;
+        }
+        if (!WeatherRepository.get(context).isWeatherLoaded()) {
+            OmniJawsClient snapshotClient = new OmniJawsClient(context);
+            if (snapshotClient.loadLastKnownWeather()) {
+                if (LOGGING) {
+                    Log.i(TAG, "updateAllWeather from snapshot");
+                }
+                for (int appWidgetId : appWidgetIds) {
+                    updateWeather(context, appWidgetManager, appWidgetId, snapshotClient);
+                }
             }
+            sExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateAllWeather(context, appWidgetManager, appWidgetIds);
+                    } finally {
+                        finish(result);
+                    }
+                }
+            });
+            return;
+        }
+        updateAllWeather(context, appWidgetManager, appWidgetIds);
+        finish(result);
+    }
+
+    private static void updateAllWeather(Context context, AppWidgetManager appWidgetManager,
+                                         int[] appWidgetIds) {
+        // one query for all widgets - only the icon pack differs
+        OmniJawsClient weatherClient = new OmniJawsClient(context);
+        weatherClient.queryWeather();
+        for (int appWidgetId : appWidgetIds) {
+            updateWeather(context, appWidgetManager, appWidgetId, weatherClient);
+        }
+    }
+
+    private static void finish(BroadcastReceiver.PendingResult result) {
+        if (result != null) {
+            result.finish();
         }
     }
 
@@ -187,21 +281,25 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
 
     private static void updateWeather(
             Context context, AppWidgetManager appWidgetManager, int appWidgetId) {
+        OmniJawsClient weatherClient = new OmniJawsClient(context);
+        weatherClient.queryWeather();
+        updateWeather(context, appWidgetManager, appWidgetId, weatherClient);
+    }
+
+    /**
+     * @param weatherClient - client with the already queried weather data
+     */
+    private static void updateWeather(Context context, AppWidgetManager appWidgetManager,
+                                      int appWidgetId, OmniJawsClient weatherClient) {
 
         if (LOGGING) {
             Log.i(TAG, "updateWeather " + appWidgetId);
         }
-        OmniJawsClient weatherClient = new OmniJawsClient(context);
-        weatherClient.queryWeather();
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        String iconPack = prefs.getString(WeatherAppWidgetConfigure.KEY_ICON_PACK + "_" + appWidgetId, "");
-        if (!TextUtils.isEmpty(iconPack)) {
-            weatherClient.loadIconPackage(iconPack);
-        }
+        WidgetConfig config = WidgetConfig.get(context, appWidgetId, WidgetConfig.TYPE_WEATHER);
+        weatherClient.loadIconPackage(config.iconPack);
 
         RemoteViews widget = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
-        widget.setImageViewBitmap(R.id.refresh, shadow(context.getResources(),
-                context.getResources().getDrawable(R.drawable.ic_menu_refresh)).getBitmap());
+        widget.setImageViewBitmap(R.id.refresh, getRefreshIcon(context.getResources()));
         Intent refreshIntent = new Intent();
         refreshIntent.setAction(REFRESH_BROADCAST);
         widget.setOnClickPendingIntent(R.id.refresh,
@@ -212,7 +310,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setOnClickPendingIntent(R.id.weather_data,
                 PendingIntent.getActivity(context, 0, configureIntent, PendingIntent.FLAG_UPDATE_CURRENT));
 
-        boolean backgroundShadow = prefs.getBoolean(WeatherAppWidgetConfigure.KEY_BACKGROUND_SHADOW + "_" + appWidgetId, false);
+        boolean backgroundShadow = config.backgroundShadow;
         widget.setViewVisibility(R.id.background_shadow, backgroundShadow ? View.VISIBLE : View.GONE);
         initWidget(widget);
 
@@ -236,81 +334,70 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         int minWidth = context.getResources().getDimensionPixelSize(R.dimen.weather_widget_width);
 
         int currentHeight = minHeight;
-        int currentWidth = minWidth;
+        // in dp - 0 until the launcher reported the size
+        int currentWidthDp = 0;
 
         if (newOptions != null) {
             currentHeight = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_HEIGHT, minHeight);
-            currentWidth = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, minWidth);
+            currentWidthDp = newOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_MAX_WIDTH, 0);
         }
         boolean showDays = currentHeight > minHeight ? true : false;
         boolean showLocalDetails = currentHeight > minHeight ? true : false;
 
-        Long timeStamp = weatherData.timeStamp;
+        long timeStamp = weatherData.timeStamp;
         String format = DateFormat.is24HourFormat(context) ? "HH:mm" : "hh:mm a";
         SimpleDateFormat sdf = new SimpleDateFormat(format);
         widget.setTextViewText(R.id.current_weather_city, weatherData.city + " (" + sdf.format(timeStamp) + ")");
 
+        // only the tiles that fit next to the current one
+        final float density = context.getResources().getDisplayMetrics().density;
+        final float tileWidthDp = context.getResources().getDimension(R.dimen.weather_forecast_tile_width) / density;
+        int widthDp = currentWidthDp > 0 ? currentWidthDp : (int) (minWidth / density);
+        int forecastDays = Math.max(0, (int) (widthDp / tileWidthDp) - 1);
+        forecastDays = Math.min(forecastDays, FORECAST_VIEWS.length);
+        if (weatherData.forecasts != null) {
+            forecastDays = Math.min(forecastDays, weatherData.forecasts.size());
+        } else {
+            forecastDays = 0;
+        }
+        if (LOGGING) {
+            Log.i(TAG, "updateWeather " + appWidgetId + " widthDp = " + widthDp + " forecastDays = " + forecastDays);
+        }
+
+        String currentLabel = context.getResources().getString(R.string.omnijaws_current_text);
+        String[] dayLabels = new String[forecastDays];
         sdf = new SimpleDateFormat("EE");
         Calendar cal = Calendar.getInstance();
-        String dayShort = sdf.format(new Date(cal.getTimeInMillis()));
-
-        Drawable d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(0).conditionCode);
-        BitmapDrawable bd = overlay(context.getResources(), d, weatherData.forecasts.get(0).low, weatherData.forecasts.get(0).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_0, bd.getBitmap());
-        widget.setTextViewText(R.id.forecast_text_0, dayShort);
-        widget.setViewVisibility(R.id.forecast_text_0, showDays ? View.VISIBLE : View.GONE);
-
-        cal.add(Calendar.DATE, 1);
-        dayShort = sdf.format(new Date(cal.getTimeInMillis()));
-
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(1).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(1).low, weatherData.forecasts.get(1).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_1, bd.getBitmap());
-        widget.setTextViewText(R.id.forecast_text_1, dayShort);
-        widget.setViewVisibility(R.id.forecast_text_1, showDays ? View.VISIBLE : View.GONE);
-
-        cal.add(Calendar.DATE, 1);
-        dayShort = sdf.format(new Date(cal.getTimeInMillis()));
-
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(2).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(2).low, weatherData.forecasts.get(2).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_2, bd.getBitmap());
-        widget.setTextViewText(R.id.forecast_text_2, dayShort);
-        widget.setViewVisibility(R.id.forecast_text_2, showDays ? View.VISIBLE : View.GONE);
-
-        cal.add(Calendar.DATE, 1);
-        dayShort = sdf.format(new Date(cal.getTimeInMillis()));
-
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(3).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(3).low, weatherData.forecasts.get(3).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_3, bd.getBitmap());
-        widget.setTextViewText(R.id.forecast_text_3, dayShort);
-        widget.setViewVisibility(R.id.forecast_text_3, showDays ? View.VISIBLE : View.GONE);
-
-        cal.add(Calendar.DATE, 1);
-        dayShort = sdf.format(new Date(cal.getTimeInMillis()));
-
-        d = weatherClient.getWeatherConditionImage(weatherData.forecasts.get(4).conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.forecasts.get(4).low, weatherData.forecasts.get(4).high,
-                weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.forecast_image_4, bd.getBitmap());
-        widget.setTextViewText(R.id.forecast_text_4, dayShort);
-        widget.setViewVisibility(R.id.forecast_text_4, showDays ? View.VISIBLE : View.GONE);
-
-        d = weatherClient.getWeatherConditionImage(weatherData.conditionCode);
-        bd = overlay(context.getResources(), d, weatherData.temp, null, weatherData.tempUnits);
-        widget.setImageViewBitmap(R.id.current_image, bd.getBitmap());
-        widget.setTextViewText(R.id.current_text, context.getResources().getText(R.string.omnijaws_current_text));
-        widget.setViewVisibility(R.id.current_text, showDays ? View.VISIBLE : View.GONE);
+        for (int i = 0; i < forecastDays; i++) {
+            dayLabels[i] = sdf.format(new Date(cal.getTimeInMillis()));
+            cal.add(Calendar.DATE, 1);
+        }
 
+        // icons as resource ids and the temperature as text - only possible
+        // for the icon packs of this app, the others are always sent as tiles
+        final boolean useResources = config.compactRendering && weatherClient.isLocalIconPack();
+        setConditions(context, widget, weatherClient, useResources, weatherData, forecastDays,
+                currentLabel, dayLabels, showDays);
         widget.setViewVisibility(R.id.current_weather_line, showLocalDetails ? View.VISIBLE : View.GONE);
-        widget.setTextViewText(R.id.current_weather_data, weatherData.windSpeed + " " + weatherData.windUnits + " "
-                + weatherData.windDirection + " - " + weatherData.humidity);
-
+        widget.setTextViewText(R.id.current_weather_data, weatherData.getFormattedWindSpeed() + " "
+                + weatherData.getWindUnits() + " " + weatherData.getFormattedWindDirection()
+                + " - " + weatherData.humidity);
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            // the conditions of this update in both modes
+            RemoteViews tiles = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+            setConditions(context, tiles, weatherClient, false, weatherData, forecastDays,
+                    currentLabel, dayLabels, showDays);
+            String sizes = "tiles = " + getParcelSize(tiles);
+            if (weatherClient.isLocalIconPack()) {
+                RemoteViews compact = new RemoteViews(context.getPackageName(), R.layout.weather_appwidget);
+                setConditions(context, compact, weatherClient, true, weatherData, forecastDays,
+                        currentLabel, dayLabels, showDays);
+                sizes += " compact = " + getParcelSize(compact);
+            }
+            Log.d(TAG, "updateWeather " + appWidgetId + " compact = " + useResources
+                    + " parcel size = " + getParcelSize(widget) + " conditions " + sizes);
+        }
         appWidgetManager.updateAppWidget(appWidgetId, widget);
     }
 
@@ -361,6 +448,126 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         widget.setViewVisibility(R.id.error_marker, View.GONE);
     }
 
+    private static void setConditions(Context context, RemoteViews widget, OmniJawsClient weatherClient,
+                                      boolean useResources, OmniJawsClient.WeatherInfo weatherData,
+                                      int forecastDays, String currentLabel, String[] dayLabels,
+                                      boolean showDays) {
+        final String tempUnits = weatherData.getTempUnits();
+        setCondition(context, widget, weatherClient, useResources, R.id.current_image, R.id.current_text,
+                weatherData.conditionCode, weatherData.getFormattedTemperature(), null, tempUnits,
+                currentLabel, showDays);
+        for (int i = 0; i < FORECAST_VIEWS.length; i++) {
+            if (i >= forecastDays) {
+                widget.setViewVisibility(FORECAST_VIEWS[i], View.GONE);
+                continue;
+            }
+            OmniJawsClient.DayForecast forecast = weatherData.forecasts.get(i);
+            widget.setViewVisibility(FORECAST_VIEWS[i], View.VISIBLE);
+            setCondition(context, widget, weatherClient, useResources, FORECAST_IMAGES[i], FORECAST_TEXTS[i],
+                    forecast.conditionCode, forecast.getFormattedLow(), forecast.getFormattedHigh(), tempUnits,
+                    dayLabels[i], showDays);
+        }
+    }
+
+    /**
+     * @param useResources - send the resource id of the icon and the temperature as text
+     *                     instead of a rendered tile - only for local icon packs
+     */
+    private static void setCondition(Context context, RemoteViews widget, OmniJawsClient weatherClient,
+                                     boolean useResources, int imageId, int textId, int conditionCode,
+                                     String min, String max, String tempUnits, String label,
+                                     boolean showLabel) {
+        if (useResources) {
+            int resId = weatherClient.getWeatherConditionResource(conditionCode);
+            widget.setImageViewResource(imageId, resId != 0 ? resId : R.drawable.ic_qs_weather_default_on);
+            String temperature = getTemperatureText(min, max, tempUnits);
+            widget.setTextViewText(textId, showLabel ? label + " " + temperature : temperature);
+            widget.setViewVisibility(textId, View.VISIBLE);
+        } else {
+            widget.setImageViewBitmap(imageId, getTile(context, weatherClient, conditionCode,
+                    min, max, tempUnits));
+            widget.setTextViewText(textId, label);
+            widget.setViewVisibility(textId, showLabel ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    private static String getTemperatureText(String min, String max, String tempUnits) {
+        if (max != null) {
+            return min + "/" + max + tempUnits;
+        }
+        return min + tempUnits;
+    }
+
+    private static int getParcelSize(RemoteViews widget) {
+        Parcel p = Parcel.obtain();
+        try {
+            widget.writeToParcel(p, 0);
+            return p.dataSize();
+        } finally {
+            p.recycle();
+        }
+    }
+
+    /**
+     * An icon pack was updated or removed - its tiles must be drawn again.
+     */
+    static void invalidateTiles() {
+        sTileCache.evictAll();
+    }
+
+    /**
+     * @return the condition icon with the temperature below it - rendered tiles are cached
+     */
+    private static Bitmap getTile(Context context, OmniJawsClient weatherClient, int conditionCode,
+                                  String min, String max, String tempUnits) {
+        final Resources resources = context.getResources();
+        final String key = weatherClient.getIconPackage() + "|" + conditionCode + "|" + min
+                + "|" + max + "|" + tempUnits + "|" + resources.getDisplayMetrics().densityDpi
+                + "|" + resources.getDisplayMetrics().scaledDensity;
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            Drawable d = weatherClient.getWeatherConditionImage(conditionCode);
+            if (d == null) {
+                d = weatherClient.getDefaultWeatherConditionImage();
+            }
+            tile = overlay(resources, d, min, max, tempUnits).getBitmap();
+            sTileCache.put(key, tile);
+        } else if (LOGGING) {
+            Log.i(TAG, "getTile cached " + key);
+        }
+        return tile;
+    }
+
+    /**
+     * The refresh icon never changes so it is only rendered once per density.
+     */
+    private static synchronized Bitmap getRefreshIcon(Resources resources) {
+        final int densityDpi = resources.getDisplayMetrics().densityDpi;
+        if (sRefreshIcon == null || sRefreshIconDensity != densityDpi) {
+            sRefreshIcon = shadow(resources, resources.getDrawable(R.drawable.ic_menu_refresh)).getBitmap();
+            sRefreshIconDensity = densityDpi;
+        }
+        return sRefreshIcon;
+    }
+
+    private static synchronized TextPaint getTextPaint(Resources resources) {
+        // text size also depends on the font scale
+        final float scaledDensity = resources.getDisplayMetrics().scaledDensity;
+        if (sTextPaint == null || sTextPaintDensity != scaledDensity) {
+            final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+            Typeface font = Typeface.create("sans-serif-condensed", Typeface.NORMAL);
+            textPaint.setTypeface(font);
+            textPaint.setColor(resources.getColor(R.color.widget_text_color));
+            textPaint.setTextAlign(Paint.Align.LEFT);
+            textPaint.setShadowLayer(5, 0, 2, Color.BLACK);
+            final int textSize = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14f, resources.getDisplayMetrics());
+            textPaint.setTextSize(textSize);
+            sTextPaint = textPaint;
+            sTextPaintDensity = scaledDensity;
+        }
+        return sTextPaint;
+    }
+
     private static BitmapDrawable overlay(Resources resources, Drawable image, String min, String max, String tempUnits) {
         final Canvas canvas = new Canvas();
         canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG,
@@ -369,14 +576,8 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         final int footerHeight = Math.round(18 * density);
         final int imageWidth = image.getIntrinsicWidth();
         final int imageHeight = image.getIntrinsicHeight();
-        final TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
-        Typeface font = Typeface.create("sans-serif-condensed", Typeface.NORMAL);
-        textPaint.setTypeface(font);
-        textPaint.setColor(resources.getColor(R.color.widget_text_color));
-        textPaint.setTextAlign(Paint.Align.LEFT);
-        textPaint.setShadowLayer(5, 0, 2, Color.BLACK);
-        final int textSize = (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, 14f, resources.getDisplayMetrics());
-        textPaint.setTextSize(textSize);
+        final TextPaint textPaint = getTextPaint(resources);
+        final int textSize = (int) textPaint.getTextSize();
         final int height = imageHeight + footerHeight;
         final int width = imageWidth;
 
@@ -385,12 +586,7 @@ public class WeatherAppWidgetProvider extends AppWidgetProvider {
         image.setBounds(0, 0, imageWidth, imageHeight);
         image.draw(canvas);
 
-        String str = null;
-        if (max != null) {
-            str = min + "/" + max + tempUnits;
-        } else {
-            str = min + tempUnits;
-        }
+        String str = getTemperatureText(min, max, tempUnits);
         Rect bounds = new Rect();
         textPaint.getTextBounds(str, 0, str.length(), bounds);
         canvas.drawText(str, width / 2 - bounds.width() / 2, height - textSize / 2, textPaint);
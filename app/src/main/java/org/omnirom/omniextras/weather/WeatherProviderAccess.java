@@ -0,0 +1,191 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.weather;
+
+import android.content.ContentProviderClient;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * All queries of the omnijaws provider go through here. The connection to the
+ * provider is kept for the queries that follow each other and released once
+ * it has been idle for a while, so the omnijaws process is not kept bound.
+ * Every cursor is closed after it has been read. Latency and row count of
+ * every query are recorded.
+ *
+ * adb shell setprop log.tag.WeatherProviderAccess DEBUG to log the stats.
+ */
+class WeatherProviderAccess {
+    private static final String TAG = "WeatherProviderAccess";
+    private static final int STATS_INTERVAL = 20;
+    private static final long IDLE_TIMEOUT = 30 * 1000;
+
+    interface CursorReader<T> {
+        /**
+         * @param c - the cursor of the query - is closed afterwards
+         */
+        T read(Cursor c);
+    }
+
+    private static class Stats {
+        int queries;
+        int failures;
+        long rows;
+        long totalMillis;
+        long maxMillis;
+
+        @Override
+        public String toString() {
+            return "queries=" + queries + " failures=" + failures + " rows=" + rows
+                    + " avgMs=" + (queries != 0 ? totalMillis / queries : 0) + " maxMs=" + maxMillis;
+        }
+    }
+
+    private static final Map<String, Stats> sStats = new HashMap<String, Stats>();
+    private static ContentProviderClient sClient;
+    private static int sQueryCount;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final Runnable sReleaseClient = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WeatherProviderAccess.class) {
+                releaseClient();
+            }
+        }
+    };
+
+    /**
+     * @return what the reader returned or null if the provider is not available
+     */
+    static synchronized <T> T query(Context context, Uri uri, String[] projection,
+                                    CursorReader<T> reader) {
+        final long start = SystemClock.elapsedRealtime();
+        Cursor c = null;
+        try {
+            c = queryProvider(context, uri, projection);
+        } catch (DeadObjectException e) {
+            // provider process died - connect again
+            releaseClient();
+            try {
+                c = queryProvider(context, uri, projection);
+            } catch (RemoteException | RuntimeException e2) {
+                Log.w(TAG, "query " + uri + " failed", e2);
+                releaseClient();
+            }
+        } catch (RemoteException | RuntimeException e) {
+            // e.g. SecurityException or IllegalArgumentException of the provider
+            Log.w(TAG, "query " + uri + " failed", e);
+            releaseClient();
+        }
+        scheduleRelease();
+        if (c == null) {
+            record(uri, start, -1);
+            return null;
+        }
+        try {
+            int rows = c.getCount();
+            T result = reader.read(c);
+            record(uri, start, rows);
+            return result;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "reading " + uri + " failed", e);
+            record(uri, start, -1);
+            return null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void scheduleRelease() {
+        sHandler.removeCallbacks(sReleaseClient);
+        if (sClient != null) {
+            sHandler.postDelayed(sReleaseClient, IDLE_TIMEOUT);
+        }
+    }
+
+    private static Cursor queryProvider(Context context, Uri uri, String[] projection)
+            throws RemoteException {
+        if (sClient == null) {
+            sClient = context.getApplicationContext().getContentResolver()
+                    .acquireUnstableContentProviderClient(uri.getAuthority());
+            if (sClient == null) {
+                // not installed
+                return null;
+            }
+        }
+        return sClient.query(uri, projection, null, null, null);
+    }
+
+    private static void releaseClient() {
+        if (sClient != null) {
+            sClient.close();
+            sClient = null;
+        }
+    }
+
+    /**
+     * @param rows - number of rows or -1 if the query failed
+     */
+    private static void record(Uri uri, long start, int rows) {
+        final long duration = SystemClock.elapsedRealtime() - start;
+        final String key = uri.getPath();
+        Stats stats = sStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            sStats.put(key, stats);
+        }
+        stats.queries++;
+        if (rows < 0) {
+            stats.failures++;
+        } else {
+            stats.rows += rows;
+        }
+        stats.totalMillis += duration;
+        stats.maxMillis = Math.max(stats.maxMillis, duration);
+
+        sQueryCount++;
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "query " + key + " rows=" + rows + " ms=" + duration);
+            if (sQueryCount % STATS_INTERVAL == 0) {
+                Log.d(TAG, getStats());
+            }
+        }
+    }
+
+    static synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stats> entry : sStats.entrySet()) {
+            if (sb.length() != 0) {
+                sb.append(" ");
+            }
+            sb.append(entry.getKey()).append(": [").append(entry.getValue()).append("]");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.weather;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Decides if a weather refresh request is passed on to omnijaws. A refresh is
+ * only due if the weather data is old enough, repeated requests within the
+ * cooldown are collapsed and after an error the next request is delayed with
+ * an exponential backoff. Automatic requests are dropped while the display is
+ * off.
+ */
+class WeatherRefreshScheduler {
+    private static final String TAG = "WeatherService:WeatherRefreshScheduler";
+    private static final boolean DEBUG = false;
+
+    // requested by the user
+    static final int REASON_USER = 0;
+    // widget added or system update request
+    static final int REASON_AUTO = 1;
+
+    private static final long COOLDOWN = 30 * 1000;
+    // data younger than that is not refreshed on a user request
+    private static final long USER_MIN_AGE = 2 * 60 * 1000;
+    // data older than that is refreshed on an automatic request
+    private static final long AUTO_MIN_AGE = 60 * 60 * 1000;
+    private static final long BACKOFF_BASE = 60 * 1000;
+    private static final long BACKOFF_MAX = 60 * 60 * 1000;
+
+    // all in elapsed realtime
+    private static long sLastRequest;
+    private static long sBackoffUntil;
+    private static int sErrorCount;
+
+    /**
+     * @return true if omnijaws was asked for new weather data
+     */
+    static synchronized boolean requestRefresh(Context context, int reason) {
+        final long now = SystemClock.elapsedRealtime();
+        if (reason == REASON_AUTO && !isInteractive(context)) {
+            if (DEBUG) Log.d(TAG, "drop refresh - display off");
+            return false;
+        }
+        if (sLastRequest != 0 && now - sLastRequest < COOLDOWN) {
+            if (DEBUG) Log.d(TAG, "drop refresh - cooldown");
+            return false;
+        }
+        // a tap always gets through the backoff - only the cooldown limits it
+        if (reason == REASON_AUTO && now < sBackoffUntil) {
+            if (DEBUG) Log.d(TAG, "drop refresh - backoff after " + sErrorCount + " errors");
+            return false;
+        }
+        if (!isDue(context, reason == REASON_USER ? USER_MIN_AGE : AUTO_MIN_AGE)) {
+            if (DEBUG) Log.d(TAG, "drop refresh - weather is recent");
+            return false;
+        }
+        // no enabled check - that needs a provider query on the caller's
+        // thread; while disabled the request only starts the omnijaws service
+        OmniJawsClient weatherClient = new OmniJawsClient(context);
+        sLastRequest = now;
+        weatherClient.updateWeather();
+        return true;
+    }
+
+    /**
+     * New weather data arrived - stop the backoff.
+     */
+    static synchronized void onWeatherUpdated() {
+        sErrorCount = 0;
+        sBackoffUntil = 0;
+    }
+
+    static synchronized void onWeatherError() {
+        sErrorCount++;
+        final long backoff = Math.min(BACKOFF_BASE << Math.min(sErrorCount - 1, 16), BACKOFF_MAX);
+        sBackoffUntil = SystemClock.elapsedRealtime() + backoff;
+        if (DEBUG) Log.d(TAG, "error " + sErrorCount + " backoff " + backoff);
+    }
+
+    private static boolean isDue(Context context, long minAge) {
+        // no provider query - this might be the first update after a restart
+        OmniJawsClient.WeatherInfo weatherData = WeatherRepository.get(context).getLastKnownWeatherInfo();
+        if (weatherData == null || weatherData.timeStamp == 0) {
+            return true;
+        }
+        final long age = System.currentTimeMillis() - weatherData.timeStamp;
+        // a timestamp in the future means the clock was changed
+        return age < 0 || age >= minAge;
+    }
+
+    private static boolean isInteractive(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        return pm == null || pm.isInteractive();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.weather;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide copy of the omnijaws provider content. The weather data and the
+ * settings are only queried again after the provider notified a change of them.
+ */
+class WeatherRepository {
+    private static final String TAG = "WeatherService:WeatherRepository";
+    private static final boolean DEBUG = false;
+
+    private static final String[] SETTINGS_PROJECTION = new String[] {
+            "enabled",
+            "units"
+    };
+
+    private static WeatherRepository sInstance;
+
+    private final Context mContext;
+    private final ContentObserver mWeatherObserver;
+    private final ContentObserver mSettingsObserver;
+
+    private boolean mWeatherValid;
+    private boolean mSettingsValid;
+    // volatile - also read without the lock by getLastKnownWeatherInfo
+    private volatile OmniJawsClient.WeatherInfo mWeatherInfo;
+    // weather data has been queried at least once in this process
+    private volatile boolean mWeatherLoaded;
+    // guarded by mSnapshotLock
+    private final Object mSnapshotLock = new Object();
+    private OmniJawsClient.WeatherInfo mSnapshot;
+    private boolean mSnapshotLoaded;
+    private boolean mInstalled;
+    private boolean mEnabled;
+    private boolean mMetric;
+
+    static synchronized WeatherRepository get(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private WeatherRepository(Context context) {
+        mContext = context;
+        mWeatherObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (DEBUG) Log.d(TAG, "weather changed");
+                invalidateWeather();
+            }
+        };
+        mSettingsObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (DEBUG) Log.d(TAG, "settings changed");
+                invalidateSettings();
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(
+                OmniJawsClient.WEATHER_URI, true, mWeatherObserver);
+        mContext.getContentResolver().registerContentObserver(
+                OmniJawsClient.SETTINGS_URI, true, mSettingsObserver);
+    }
+
+    /**
+     * Force a new query of the weather data on the next access.
+     */
+    synchronized void invalidateWeather() {
+        mWeatherValid = false;
+    }
+
+    /**
+     * Force a new query of the settings on the next access. The weather data
+     * is only queried again if the state or the units changed.
+     */
+    synchronized void invalidateSettings() {
+        mSettingsValid = false;
+    }
+
+    /**
+     * Force a new query of everything on the next access.
+     */
+    synchronized void invalidate() {
+        mWeatherValid = false;
+        mSettingsValid = false;
+    }
+
+    synchronized boolean isEnabled() {
+        loadSettingsIfNeeded();
+        return mInstalled && mEnabled;
+    }
+
+    synchronized boolean isMetric() {
+        loadSettingsIfNeeded();
+        return mMetric;
+    }
+
+    /**
+     * @return the weather data or null if there is none or omnijaws is disabled
+     */
+    synchronized OmniJawsClient.WeatherInfo getWeatherInfo() {
+        loadSettingsIfNeeded();
+        if (!mWeatherValid) {
+            OmniJawsClient.WeatherInfo previous = mWeatherLoaded ? mWeatherInfo : getSnapshot();
+            mWeatherInfo = mInstalled && mEnabled ? queryWeather() : null;
+            mWeatherValid = true;
+            // after mWeatherInfo - getLastKnownWeatherInfo reads them without the lock
+            mWeatherLoaded = true;
+            if (DEBUG) Log.d(TAG, "queryWeather " + mWeatherInfo);
+            updateSnapshot(previous);
+        }
+        return mWeatherInfo;
+    }
+
+    /**
+     * @return true if the weather data has been queried in this process
+     */
+    synchronized boolean isWeatherLoaded() {
+        return mWeatherLoaded;
+    }
+
+    /**
+     * @return the weather data of the last query - from the snapshot
+     * if there was none in this process - without querying the provider.
+     * Does not wait for a running query.
+     */
+    OmniJawsClient.WeatherInfo getLastKnownWeatherInfo() {
+        return mWeatherLoaded ? mWeatherInfo : getSnapshot();
+    }
+
+    private OmniJawsClient.WeatherInfo getSnapshot() {
+        synchronized (mSnapshotLock) {
+            if (!mSnapshotLoaded) {
+                mSnapshot = WeatherSnapshot.read(mContext);
+                mSnapshotLoaded = true;
+            }
+            return mSnapshot;
+        }
+    }
+
+    private void updateSnapshot(OmniJawsClient.WeatherInfo previous) {
+        if (mWeatherInfo == null) {
+            if (!mInstalled || !mEnabled) {
+                // do not show outdated data on the next start
+                WeatherSnapshot.delete(mContext);
+            }
+            return;
+        }
+        if (mWeatherInfo.equals(previous)) {
+            return;
+        }
+        WeatherSnapshot.write(mContext, mWeatherInfo);
+    }
+
+    private void loadSettingsIfNeeded() {
+        if (mSettingsValid) {
+            return;
+        }
+        final boolean wasInstalled = mInstalled;
+        final boolean wasEnabled = mEnabled;
+        final boolean wasMetric = mMetric;
+        mInstalled = isAvailableApp(OmniJawsClient.SERVICE_PACKAGE);
+        // same defaults as without a settings row
+        mEnabled = true;
+        mMetric = false;
+        if (mInstalled) {
+            WeatherProviderAccess.query(mContext, OmniJawsClient.SETTINGS_URI, SETTINGS_PROJECTION,
+                    new WeatherProviderAccess.CursorReader<Void>() {
+                        @Override
+                        public Void read(Cursor c) {
+                            if (c.getCount() == 1) {
+                                c.moveToPosition(0);
+                                mEnabled = c.getInt(0) == 1;
+                                mMetric = c.getInt(1) == 0;
+                            }
+                            return null;
+                        }
+                    });
+        }
+        mSettingsValid = true;
+        // omnijaws delivers the values already converted to the configured
+        // units so a units change still needs a new weather query - other
+        // settings changes do not
+        if (mInstalled != wasInstalled || mEnabled != wasEnabled || mMetric != wasMetric) {
+            mWeatherValid = false;
+        }
+    }
+
+    private OmniJawsClient.WeatherInfo queryWeather() {
+        return WeatherProviderAccess.query(mContext, OmniJawsClient.WEATHER_URI,
+                OmniJawsClient.WEATHER_PROJECTION,
+                new WeatherProviderAccess.CursorReader<OmniJawsClient.WeatherInfo>() {
+                    @Override
+                    public OmniJawsClient.WeatherInfo read(Cursor c) {
+                        return readWeather(c);
+                    }
+                });
+    }
+
+    private OmniJawsClient.WeatherInfo readWeather(Cursor c) {
+        int count = c.getCount();
+        if (count == 0) {
+            return null;
+        }
+        OmniJawsClient.WeatherInfo info = new OmniJawsClient.WeatherInfo();
+        List<OmniJawsClient.DayForecast> forecastList =
+                new ArrayList<OmniJawsClient.DayForecast>();
+        for (int i = 0; i < count; i++) {
+            c.moveToPosition(i);
+            if (i == 0) {
+                info.city = c.getString(0);
+                info.windSpeed = c.getFloat(1);
+                info.windDirection = c.getInt(2);
+                info.conditionCode = c.getInt(3);
+                info.temp = c.getFloat(4);
+                info.humidity = c.getString(5);
+                info.condition = c.getString(6);
+                info.timeStamp = c.getLong(11);
+            } else {
+                OmniJawsClient.DayForecast day = new OmniJawsClient.DayForecast();
+                day.low = c.getFloat(7);
+                day.high = c.getFloat(8);
+                day.condition = c.getString(9);
+                day.conditionCode = c.getInt(10);
+                day.date = c.getString(12);
+                forecastList.add(day);
+            }
+        }
+        info.forecasts = forecastList;
+        info.metric = mMetric;
+        return info;
+    }
+
+    private boolean isAvailableApp(String packageName) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES);
+            int enabled = pm.getApplicationEnabledSetting(packageName);
+            return enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED &&
+                    enabled != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER;
+        } catch (PackageManager.NameNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2017 The OmniROM Project
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 2 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package org.omnirom.omniextras.weather;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Last known weather data in the files dir so the widgets can show it right
+ * after a restart before the omnijaws provider answered.
+ */
+class WeatherSnapshot {
+    private static final String TAG = "WeatherService:WeatherSnapshot";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "weather_snapshot";
+    // increase on every format change - older files are ignored
+    private static final int VERSION = 2;
+
+    static void write(Context context, OmniJawsClient.WeatherInfo info) {
+        AtomicFile file = getFile(context);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeInt(VERSION);
+            writeString(out, info.city);
+            out.writeFloat(info.windSpeed);
+            out.writeInt(info.windDirection);
+            out.writeInt(info.conditionCode);
+            out.writeFloat(info.temp);
+            writeString(out, info.humidity);
+            writeString(out, info.condition);
+            out.writeLong(info.timeStamp);
+            out.writeBoolean(info.metric);
+            final int count = info.forecasts != null ? info.forecasts.size() : 0;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                OmniJawsClient.DayForecast day = info.forecasts.get(i);
+                out.writeFloat(day.low);
+                out.writeFloat(day.high);
+                out.writeInt(day.conditionCode);
+                writeString(out, day.condition);
+                writeString(out, day.date);
+            }
+            out.flush();
+            file.finishWrite(fos);
+            if (DEBUG) Log.d(TAG, "written " + info);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write snapshot", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    /**
+     * @return the last written weather data or null
+     */
+    static OmniJawsClient.WeatherInfo read(Context context) {
+        AtomicFile file = getFile(context);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(file.openRead());
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            OmniJawsClient.WeatherInfo info = new OmniJawsClient.WeatherInfo();
+            info.city = readString(in);
+            info.windSpeed = in.readFloat();
+            info.windDirection = in.readInt();
+            info.conditionCode = in.readInt();
+            info.temp = in.readFloat();
+            info.humidity = readString(in);
+            info.condition = readString(in);
+            info.timeStamp = in.readLong();
+            info.metric = in.readBoolean();
+            final int count = in.readInt();
+            List<OmniJawsClient.DayForecast> forecasts =
+                    new ArrayList<OmniJawsClient.DayForecast>(count);
+            for (int i = 0; i < count; i++) {
+                OmniJawsClient.DayForecast day = new OmniJawsClient.DayForecast();
+                day.low = in.readFloat();
+                day.high = in.readFloat();
+                day.conditionCode = in.readInt();
+                day.condition = readString(in);
+                day.date = readString(in);
+                forecasts.add(day);
+            }
+            info.forecasts = forecasts;
+            if (DEBUG) Log.d(TAG, "read " + info);
+            return info;
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    static void delete(Context context) {
+        getFile(context).delete();
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}